@@ -621,6 +621,8 @@ public class Reaper extends Agent {
 
 		this.moveable.removeAll(lost);
 
+		Vector<Integer> outdated = new Vector<Integer>();
+
 		for (Position p : moveable) {
 
 			int i = p.getX();
@@ -648,7 +650,7 @@ public class Reaper extends Agent {
 				MemberData data = registry.get(id);
 
 				if (Math.abs(timestep - data.notified) > 20) {
-					sendInfo(id);
+					outdated.add(id);
 					data.notified = timestep;
 					data.map = false;
 				}
@@ -660,6 +662,18 @@ public class Reaper extends Agent {
 			}
 		}
 
+		// the info is the same for everybody, so it is sent only once
+		if (!outdated.isEmpty()) {
+
+			int[] to = new int[outdated.size()];
+
+			for (int i = 0; i < to.length; i++)
+				to[i] = outdated.get(i);
+
+			sendInfo(to);
+
+		}
+
 		for (Position p : noticed) {
 			int i = p.getX();
 			int j = p.getY();
@@ -907,7 +921,7 @@ public class Reaper extends Agent {
 		return false;
 	}
 
-	private void sendInfo(int to) {
+	private void sendInfo(int[] to) {
 
 		try {
 			ByteArrayOutputStream buffer = new ByteArrayOutputStream(
@@ -936,10 +950,13 @@ public class Reaper extends Agent {
 
 			out.flush();
 
-			send(to, buffer.toByteArray());
+			if (to.length == 1)
+				send(to[0], buffer.toByteArray());
+			else
+				send(to, buffer.toByteArray());
 
 		} catch (IOException e) {
-			debug("Error sending message to %d: %s", to, e);
+			debug("Error sending message to %d agents: %s", to.length, e);
 		}
 
 	}
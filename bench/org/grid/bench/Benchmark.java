@@ -0,0 +1,55 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.bench;
+
+/**
+ * A single benchmark. The runner calls {@link #setUp()} once, then calls
+ * {@link #run()} repeatedly during warmup and measurement and finally calls
+ * {@link #tearDown()}.
+ */
+public abstract class Benchmark {
+
+	private String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setUp() throws Exception {
+
+	}
+
+	/**
+	 * Executes one operation. The returned value is accumulated by the runner
+	 * so that the JIT can not remove the operation as dead code.
+	 */
+	public abstract int run() throws Exception;
+
+	public void tearDown() throws Exception {
+
+	}
+
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Runs the server benchmarks and prints the average time per operation.
+ *
+ * Usage: java org.grid.bench.BenchmarkRunner [filter ...]
+ *
+ * Only benchmarks whose name contains one of the filters are run. The
+ * measurement is configured with system properties: <tt>bench.warmup</tt>
+ * (warmup iterations, default 3), <tt>bench.iterations</tt> (measured
+ * iterations, default 5), <tt>bench.time</tt> (duration of an iteration in
+ * milliseconds, default 1000). Output printed by the server code during set up
+ * is discarded unless <tt>bench.verbose</tt> is set.
+ */
+public class BenchmarkRunner {
+
+	private static final PrintStream discard = new PrintStream(
+			new OutputStream() {
+
+				@Override
+				public void write(int b) {
+
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+
+				}
+			});
+
+	private int warmup = Integer.getInteger("bench.warmup", 3);
+
+	private int iterations = Integer.getInteger("bench.iterations", 5);
+
+	private long time = Long.getLong("bench.time", 1000);
+
+	private boolean verbose = Boolean.getBoolean("bench.verbose");
+
+	private PrintStream out = System.out;
+
+	private long sink = 0;
+
+	public static List<Benchmark> listBenchmarks() {
+
+		Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+
+		benchmarks.addAll(FieldBenchmarks.create());
+		benchmarks.addAll(TeamBenchmarks.create());
+		benchmarks.addAll(CodecBenchmarks.create());
+
+		return benchmarks;
+
+	}
+
+	public static void main(String[] args) {
+
+		System.setProperty("java.awt.headless", "true");
+
+		BenchmarkRunner runner = new BenchmarkRunner();
+
+		int failed = 0;
+
+		for (Benchmark benchmark : listBenchmarks()) {
+
+			if (!matches(benchmark, args))
+				continue;
+
+			if (!runner.run(benchmark))
+				failed++;
+
+		}
+
+		if (failed > 0)
+			System.exit(1);
+
+	}
+
+	private static boolean matches(Benchmark benchmark, String[] filters) {
+
+		if (filters.length == 0)
+			return true;
+
+		for (String filter : filters) {
+			if (benchmark.getName().contains(filter))
+				return true;
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Runs a single benchmark and prints the result.
+	 *
+	 * @return false if the benchmark failed
+	 */
+	public boolean run(Benchmark benchmark) {
+
+		try {
+
+			quiet();
+
+			try {
+				benchmark.setUp();
+			} finally {
+				System.setOut(out);
+			}
+
+			for (int i = 0; i < warmup; i++)
+				iteration(benchmark);
+
+			double[] results = new double[iterations];
+
+			double mean = 0;
+
+			for (int i = 0; i < iterations; i++) {
+				results[i] = iteration(benchmark);
+				mean += results[i];
+			}
+
+			mean /= Math.max(1, iterations);
+
+			double deviation = 0;
+
+			for (int i = 0; i < iterations; i++)
+				deviation += (results[i] - mean) * (results[i] - mean);
+
+			deviation = Math.sqrt(deviation / Math.max(1, iterations - 1));
+
+			out.println(String.format("%-55s %14.1f ns/op  +- %.1f", benchmark
+					.getName(), mean, deviation));
+
+			return true;
+
+		} catch (Exception e) {
+
+			System.setOut(out);
+
+			out.println(String.format("%-55s failed: %s", benchmark.getName(),
+					e));
+
+			return false;
+
+		} finally {
+
+			quiet();
+
+			try {
+				benchmark.tearDown();
+			} catch (Exception e) {
+			} finally {
+				System.setOut(out);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Runs the benchmark for the duration of one iteration. The clock is read
+	 * after batches of operations of growing size so that reading it does not
+	 * dominate short operations.
+	 *
+	 * @return average time of an operation in nanoseconds
+	 */
+	private double iteration(Benchmark benchmark) throws Exception {
+
+		long limit = time * 1000000;
+
+		long operations = 0;
+
+		long batch = 1;
+
+		long start = System.nanoTime();
+
+		long elapsed;
+
+		while (true) {
+
+			for (long i = 0; i < batch; i++)
+				sink += benchmark.run();
+
+			operations += batch;
+
+			elapsed = System.nanoTime() - start;
+
+			if (elapsed >= limit)
+				break;
+
+			if (elapsed < limit / 10)
+				batch *= 2;
+
+		}
+
+		return (double) elapsed / operations;
+
+	}
+
+	private void quiet() {
+
+		if (!verbose)
+			System.setOut(discard);
+
+	}
+
+	/**
+	 * Returns the accumulated results of all operations. Only exists so that
+	 * the results are used.
+	 */
+	public long getSink() {
+		return sink;
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.bench;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.protocol.Message;
+import org.grid.protocol.MessageCodec;
+import org.grid.protocol.Neighborhood;
+import org.grid.protocol.Message.Direction;
+import org.grid.protocol.Message.MoveMessage;
+import org.grid.protocol.Message.SendMessage;
+import org.grid.protocol.Message.StateMessage;
+
+/**
+ * Encodes and decodes protocol frames the same way as the protocol socket.
+ */
+public class CodecBenchmarks {
+
+	private static final byte[] FORMATS = new byte[] {
+			MessageCodec.FORMAT_SERIALIZED, MessageCodec.FORMAT_BINARY };
+
+	public static class RoundTrip extends Benchmark {
+
+		private Message message;
+
+		private MessageCodec codec = new MessageCodec();
+
+		public RoundTrip(String title, Message message, byte format) {
+			super(String.format("MessageCodec.roundTrip[%s,%s]", title,
+					format == MessageCodec.FORMAT_BINARY ? "binary"
+							: "serialized"));
+			this.message = message;
+			codec.setFormat(format);
+		}
+
+		@Override
+		public int run() throws Exception {
+
+			byte[] data = codec.encode(message);
+
+			Message decoded = codec.decode(data, 0, data.length);
+
+			return decoded == null ? data.length : data.length + 1;
+
+		}
+
+	}
+
+	private static Neighborhood createNeighborhood(int size) {
+
+		Random random = new Random(42);
+
+		Neighborhood n = new Neighborhood(size);
+
+		for (int j = -size; j <= size; j++) {
+			for (int i = -size; i <= size; i++) {
+
+				int r = random.nextInt(10);
+
+				if (r < 5)
+					n.setCell(i, j, Neighborhood.EMPTY);
+				else if (r < 8)
+					n.setCell(i, j, Neighborhood.WALL);
+				else if (r < 9)
+					n.setCell(i, j, Neighborhood.OTHER);
+				else
+					n.setCell(i, j, 1 + random.nextInt(1000));
+
+			}
+		}
+
+		return n;
+
+	}
+
+	public static List<Benchmark> create() {
+
+		Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+
+		StateMessage state = new StateMessage(Direction.UP,
+				createNeighborhood(5));
+
+		state.setStamp(1);
+
+		byte[] payload = new byte[64];
+
+		new Random(42).nextBytes(payload);
+
+		for (byte format : FORMATS) {
+
+			benchmarks.add(new RoundTrip("state", state, format));
+			benchmarks.add(new RoundTrip("send", new SendMessage(1, payload),
+					format));
+			benchmarks.add(new RoundTrip("move", new MoveMessage(
+					Direction.LEFT), format));
+
+		}
+
+		return benchmarks;
+
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.bench;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.protocol.Neighborhood;
+import org.grid.server.Agent;
+import org.grid.server.Field;
+import org.grid.server.Game;
+import org.grid.server.Field.BodyPosition;
+import org.grid.server.Field.Cell;
+
+/**
+ * Benchmarks of the field: neighborhood scans, body placement and map
+ * loading.
+ */
+public class FieldBenchmarks {
+
+	private static final int[] SCAN_SIZES = new int[] { 3, 5, 10, 20 };
+
+	private static final int AGENTS = 100;
+
+	/**
+	 * Scans the neighborhood of one agent among a crowd of agents of the same
+	 * team.
+	 */
+	public static class ScanNeighborhood extends Benchmark {
+
+		private File map;
+
+		private int size;
+
+		private Game game;
+
+		private Agent[] agents;
+
+		private int next = 0;
+
+		public ScanNeighborhood(File map, int size) {
+			super(String.format("Game.scanNeighborhood[%s,size=%d]", map
+					.getName(), size));
+			this.map = map;
+			this.size = size;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+
+			game = Fixtures.createGame(map, size);
+
+			agents = Fixtures.placeAgents(game, AGENTS, new Random(42));
+
+		}
+
+		@Override
+		public int run() {
+
+			Neighborhood n = game.scanNeighborhood(size, agents[next]);
+
+			next = (next + 1) % agents.length;
+
+			return n.getCell(0, 0);
+
+		}
+
+	}
+
+	/**
+	 * Moves agents to random empty cells and queries their position.
+	 */
+	public static class BodyChurn extends Benchmark {
+
+		private File map;
+
+		private Field field;
+
+		private Agent[] agents;
+
+		private BodyPosition[] targets;
+
+		private Random random = new Random(42);
+
+		private int next = 0;
+
+		public BodyChurn(File map) {
+			super(String.format("Field.putBody/getPosition[%s]", map.getName()));
+			this.map = map;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+
+			Game game = Fixtures.createGame(map, 5);
+
+			field = game.getField();
+
+			agents = Fixtures.placeAgents(game, AGENTS, random);
+
+			List<Cell> empty = field.listEmptyFields(false);
+
+			targets = new BodyPosition[empty.size()];
+
+			for (int i = 0; i < targets.length; i++)
+				targets[i] = new BodyPosition(empty.get(i).getPosition(), 0, 0);
+
+		}
+
+		@Override
+		public int run() {
+
+			Agent agent = agents[next];
+
+			next = (next + 1) % agents.length;
+
+			BodyPosition current = field.getPosition(agent);
+
+			field.removeBody(agent);
+
+			if (!field.putBody(agent, targets[random.nextInt(targets.length)]))
+				field.putBody(agent, current);
+
+			return field.getPosition(agent).getX();
+
+		}
+
+	}
+
+	/**
+	 * Loads a map either from the image or from an equivalent ASCII file.
+	 */
+	public static class LoadField extends Benchmark {
+
+		private File map;
+
+		private boolean ascii;
+
+		private File file;
+
+		private Game game;
+
+		public LoadField(File map, boolean ascii) {
+			super(String.format("Field.loadFromFile[%s,%s]", map.getName(),
+					ascii ? "ascii" : "png"));
+			this.map = map;
+			this.ascii = ascii;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+
+			game = Fixtures.createGame(map, 5);
+
+			file = ascii ? Fixtures.createAsciiMap(game.getField()) : map;
+
+		}
+
+		@Override
+		public int run() throws Exception {
+
+			return Field.loadFromFile(file, game).getWidth();
+
+		}
+
+	}
+
+	public static List<Benchmark> create() {
+
+		Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+
+		File map = Fixtures.getDefaultMap();
+
+		for (int size : SCAN_SIZES)
+			benchmarks.add(new ScanNeighborhood(map, size));
+
+		benchmarks.add(new BodyChurn(map));
+
+		for (File m : Fixtures.listMaps()) {
+			benchmarks.add(new LoadField(m, false));
+			benchmarks.add(new LoadField(m, true));
+		}
+
+		return benchmarks;
+
+	}
+
+}
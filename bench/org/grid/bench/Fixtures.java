@@ -0,0 +1,183 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.grid.server.Agent;
+import org.grid.server.Field;
+import org.grid.server.Game;
+import org.grid.server.Team;
+import org.grid.server.Field.Body;
+import org.grid.server.Field.BodyPosition;
+import org.grid.server.Field.Cell;
+import org.grid.server.Field.Wall;
+import org.grid.server.Team.Headquarters;
+
+/**
+ * Builds the games used by the benchmarks from the bundled maps.
+ */
+final class Fixtures {
+
+	public static final String TEAM = "bench";
+
+	private Fixtures() {
+
+	}
+
+	/**
+	 * Returns the map directory, set with the <tt>bench.maps</tt> property.
+	 */
+	public static File getMapDirectory() {
+
+		return new File(System.getProperty("bench.maps", "maps"));
+
+	}
+
+	/**
+	 * Lists all bundled image maps sorted by name.
+	 */
+	public static File[] listMaps() {
+
+		File[] maps = getMapDirectory().listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".png");
+			}
+		});
+
+		if (maps == null)
+			return new File[0];
+
+		Arrays.sort(maps);
+
+		return maps;
+
+	}
+
+	/**
+	 * Returns the map used by the benchmarks that need a single game, set with
+	 * the <tt>bench.map</tt> property.
+	 */
+	public static File getDefaultMap() {
+
+		return new File(getMapDirectory(), System.getProperty("bench.map",
+				"maze.png"));
+
+	}
+
+	/**
+	 * Creates a game with a single team that is played on the given map.
+	 */
+	public static Game createGame(File map, int neighborhood)
+			throws IOException {
+
+		File file = File.createTempFile("bench", ".game");
+
+		file.deleteOnExit();
+
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+
+		out.println("title = Benchmark");
+		out.println("team1 = " + TEAM);
+		out.println("gameplay.field = "
+				+ map.getAbsolutePath().replace(File.separatorChar, '/'));
+		out.println("message.neighborhood = " + neighborhood);
+
+		out.close();
+
+		return Game.loadFromFile(file);
+
+	}
+
+	/**
+	 * Writes the walls and headquarters of a loaded field in the ASCII map
+	 * format.
+	 */
+	public static File createAsciiMap(Field field) throws IOException {
+
+		File file = File.createTempFile("bench", ".field");
+
+		file.deleteOnExit();
+
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+
+		for (int j = 0; j < field.getHeight(); j++) {
+
+			StringBuilder line = new StringBuilder(field.getWidth());
+
+			for (int i = 0; i < field.getWidth(); i++) {
+
+				Body body = field.getBody(i, j);
+
+				if (body instanceof Wall)
+					line.append('#');
+				else if (body instanceof Headquarters)
+					line.append('A');
+				else
+					line.append(' ');
+
+			}
+
+			out.println(line);
+
+		}
+
+		out.close();
+
+		return file;
+
+	}
+
+	/**
+	 * Places the given number of agents of the benchmark team on random empty
+	 * cells of the field.
+	 */
+	public static Agent[] placeAgents(Game game, int count, Random random) {
+
+		Field field = game.getField();
+
+		Team team = game.getTeam(TEAM);
+
+		List<Cell> empty = field.listEmptyFields(false);
+
+		Agent[] agents = new Agent[count];
+
+		for (int i = 0; i < count; i++) {
+
+			agents[i] = new Agent(team, i + 1);
+
+			Cell cell = empty.remove(random.nextInt(empty.size()));
+
+			field.putBody(agents[i], new BodyPosition(cell.getPosition(), 0, 0));
+
+		}
+
+		return agents;
+
+	}
+
+}
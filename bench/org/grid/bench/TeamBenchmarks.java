@@ -0,0 +1,126 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.bench;
+
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.grid.protocol.ProtocolSelector;
+import org.grid.server.Dispatcher;
+import org.grid.server.Game;
+import org.grid.server.Team;
+import org.grid.server.Dispatcher.Client;
+
+/**
+ * Benchmarks of team bookkeeping with many connected clients.
+ */
+public class TeamBenchmarks {
+
+	private static final int[] TEAM_SIZES = new int[] { 10, 100, 1000 };
+
+	/**
+	 * Looks up clients of a team by the id of their agent. The clients are
+	 * backed by unconnected channels, so no traffic is generated.
+	 */
+	public static class FindById extends Benchmark {
+
+		private int size;
+
+		private Team team;
+
+		private Dispatcher dispatcher;
+
+		private Vector<Client> clients = new Vector<Client>();
+
+		private ProtocolSelector selector;
+
+		private int[] ids;
+
+		private Random random = new Random(42);
+
+		public FindById(int size) {
+			super(String.format("Team.findById[agents=%d]", size));
+			this.size = size;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+
+			Game game = Fixtures.createGame(Fixtures.getDefaultMap(), 5);
+
+			dispatcher = new Dispatcher(0, game);
+
+			team = game.getTeam(Fixtures.TEAM);
+
+			selector = new ProtocolSelector();
+
+			ids = new int[size];
+
+			for (int i = 0; i < size; i++) {
+
+				Client client = dispatcher.new Client(SocketChannel.open(),
+						selector);
+
+				clients.add(client);
+
+				team.addClient(client);
+
+				ids[i] = team.newAgent().getId();
+
+			}
+
+		}
+
+		@Override
+		public int run() {
+
+			Client client = team.findById(ids[random.nextInt(ids.length)]);
+
+			return client == null ? 0 : 1;
+
+		}
+
+		@Override
+		public void tearDown() {
+
+			for (Client client : clients)
+				client.close();
+
+			selector.close();
+
+			// the dispatcher listens on a port of its own
+			dispatcher.close();
+
+		}
+
+	}
+
+	public static List<Benchmark> create() {
+
+		Vector<Benchmark> benchmarks = new Vector<Benchmark>();
+
+		for (int size : TEAM_SIZES)
+			benchmarks.add(new FindById(size));
+
+		return benchmarks;
+
+	}
+
+}
@@ -17,23 +17,33 @@
  */
 package org.grid.agent;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Set;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.grid.agent.sample.SampleAgent;
+import org.grid.protocol.LocalServer;
 import org.grid.protocol.Message;
+import org.grid.protocol.MessageCodec;
 import org.grid.protocol.Neighborhood;
 import org.grid.protocol.ProtocolSocket;
+import org.grid.protocol.Threads;
 import org.grid.protocol.Message.Direction;
 import org.grid.protocol.Message.ReceiveMessage;
+import org.grid.protocol.Message.StateDeltaMessage;
 import org.grid.protocol.Message.StateMessage;
 
 
@@ -51,27 +61,30 @@ import org.grid.protocol.Message.StateMessage;
 @Membership(team="default",passphrase="")
 public abstract class Agent {
 
-	private static Class<Agent> agentClassStatic = null;
-
-	private static Vector<ClientProtocolSocket> clients = new Vector<ClientProtocolSocket>();
-
-	private static String teamOverride = null;
+	private static boolean binaryFormat = Boolean.getBoolean("org.grid.protocol.binary");
+	
+	private static boolean deltaStates = Boolean.getBoolean("org.grid.protocol.delta");
 	
-	private static String passphraseOverride = null;
+	private static boolean multiplexed = Boolean.getBoolean("org.grid.protocol.multiplex");
 	
+	private static boolean prewarmClasses = Boolean.getBoolean("org.grid.agent.prewarm");
+	
+	/**
+	 * Loads every agent with its own copy of the agent classes, so agents can
+	 * not share state through static fields. The class files are read only
+	 * once and kept in a cache that is shared by all loaders, every loader
+	 * still defines its own classes from the cached bytes.
+	 */
 	public static class ProxyClassLoader extends ClassLoader {
 		
-		private Set<String> protectedClassPrefixes = new HashSet<String>();
+		private static ConcurrentHashMap<String, byte[]> bytecode = new ConcurrentHashMap<String, byte[]>();
+		
+		private static final String[] protectedClassPrefixes = new String[] {
+			"sun.", "java.", "javax.", "org.grid.agent.Agent", "org.grid.protocol", "org.grid.arena"
+		};
 		
 		public ProxyClassLoader() {
 			super(ProxyClassLoader.class.getClassLoader());
-			
-			protectedClassPrefixes.add("sun.");
-			protectedClassPrefixes.add("java.");
-			protectedClassPrefixes.add("javax.");
-			protectedClassPrefixes.add("org.grid.agent.Agent");
-			protectedClassPrefixes.add("org.grid.protocol");
-			protectedClassPrefixes.add("org.grid.arena");
 		}
 
 		public Class<?> loadClass(String className)
@@ -89,30 +102,17 @@ public abstract class Agent {
 			try {
 				Class<?> cls = this.findSystemClass(className);
 				
-				for (String prefix : protectedClassPrefixes) {
-					if (className.startsWith(prefix)) {
-						classes.put(className, cls);
-						return cls;	
-					}
+				if (isProtected(className)) {
+					classes.put(className, cls);
+					return cls;	
 				}
-					
-				
-				String classResource = className.substring(className.lastIndexOf('.')+1) + ".class";
-
-				InputStream in = cls.getResourceAsStream(classResource);
-				ByteArrayOutputStream ba = new ByteArrayOutputStream();
-
-				byte b[] = new byte[1024];
 
-				while (true) {
-					int len = in.read(b);
-					if (len == -1)
-						break;
-					ba.write(b, 0, len);
-				}
+				byte[] data = getBytecode(className);
+				
+				if (data == null)
+					return null;
 
-				Class<?> cl = defineClass(className, ba.toByteArray(), 0, ba
-						.size());
+				Class<?> cl = defineClass(className, data, 0, data.length);
 
 				classes.put(className, cl);
 
@@ -120,8 +120,6 @@ public abstract class Agent {
 
 			} catch (IOException e) {
 
-			} catch (NullPointerException e) {
-			
 			} catch (ClassNotFoundException e) {
 
 			}
@@ -133,6 +131,162 @@ public abstract class Agent {
 		}
 
 		private Hashtable<String, Class<?>> classes = new Hashtable<String, Class<?>>();
+		
+		private static boolean isProtected(String className) {
+			
+			for (String prefix : protectedClassPrefixes) {
+				if (className.startsWith(prefix))
+					return true;
+			}
+			
+			return false;
+			
+		}
+		
+		/**
+		 * Returns the class file of a class, it is read only the first time.
+		 * 
+		 * @return the class file or <tt>null</tt> if it can not be found
+		 */
+		private static byte[] getBytecode(String className) throws IOException {
+			
+			byte[] data = bytecode.get(className);
+			
+			if (data != null)
+				return data;
+			
+			InputStream in = ClassLoader.getSystemResourceAsStream(className.replace('.', '/') + ".class");
+
+			if (in == null)
+				return null;
+			
+			try {
+			
+				ByteArrayOutputStream ba = new ByteArrayOutputStream();
+	
+				byte b[] = new byte[1024];
+	
+				while (true) {
+					int len = in.read(b);
+					if (len == -1)
+						break;
+					ba.write(b, 0, len);
+				}
+				
+				data = ba.toByteArray();
+				
+			} finally {
+				in.close();
+			}
+			
+			byte[] previous = bytecode.putIfAbsent(className, data);
+			
+			return previous != null ? previous : data;
+			
+		}
+		
+		/**
+		 * Reads the class files of an agent class and of all classes that it
+		 * uses, directly or indirectly, into the cache, so that the first
+		 * agent does not have to wait for them.
+		 * 
+		 * @return the number of classes in the cache
+		 */
+		public static int prewarm(String className) {
+			
+			LinkedList<String> pending = new LinkedList<String>();
+			
+			HashSet<String> visited = new HashSet<String>();
+			
+			pending.add(className);
+			
+			while (!pending.isEmpty()) {
+				
+				String name = pending.removeFirst();
+				
+				if (!visited.add(name) || isProtected(name))
+					continue;
+				
+				try {
+					
+					byte[] data = getBytecode(name);
+					
+					if (data != null)
+						pending.addAll(referencedClasses(data));
+					
+				} catch (IOException e) {
+					// the class will be read again when it is needed
+				}
+				
+			}
+			
+			return bytecode.size();
+			
+		}
+		
+		/**
+		 * Lists the classes in the constant pool of a class file.
+		 */
+		private static List<String> referencedClasses(byte[] data) throws IOException {
+			
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			
+			in.skipBytes(8);
+			
+			int count = in.readUnsignedShort();
+			
+			String[] strings = new String[count];
+			
+			int[] classIndices = new int[count];
+			
+			int classCount = 0;
+			
+			for (int i = 1; i < count; i++) {
+				
+				int tag = in.readUnsignedByte();
+				
+				switch (tag) {
+				case 1: // utf8
+					strings[i] = in.readUTF();
+					break;
+				case 7: // class
+					classIndices[classCount++] = in.readUnsignedShort();
+					break;
+				case 5: // long
+				case 6: // double
+					in.skipBytes(8);
+					i++;
+					break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+					in.skipBytes(4);
+					break;
+				case 8: case 16: case 19: case 20:
+					in.skipBytes(2);
+					break;
+				case 15:
+					in.skipBytes(3);
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag: " + tag);
+				}
+				
+			}
+			
+			Vector<String> classes = new Vector<String>();
+			
+			for (int i = 0; i < classCount; i++) {
+				
+				String name = strings[classIndices[i]];
+				
+				// arrays are not loaded from class files
+				if (name != null && !name.startsWith("["))
+					classes.add(name.replace('/', '.'));
+				
+			}
+			
+			return classes;
+			
+		}
 	}
 
 	public static enum Status {
@@ -142,39 +296,79 @@ public abstract class Agent {
 	private static class ClientProtocolSocket extends ProtocolSocket implements
 			Runnable {
 
-		private ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+		/**
+		 * Messages for the callbacks of the agent. A blocking queue instead of
+		 * a monitor, so that a waiting virtual thread does not occupy its
+		 * carrier thread.
+		 */
+		private LinkedBlockingQueue<Message> inbox = new LinkedBlockingQueue<Message>();
 
 		private Status status = Status.UNKNOWN;
 
-		private Agent agent = null;
+		private volatile Agent agent = null;
 
-		private boolean terminated = false;
+		private volatile boolean terminated = false;
 
 		private String name;
 
-		public ClientProtocolSocket(Socket sck, String name) throws IOException {
+		private Class<? extends Agent> agentClass;
+
+		private Neighborhood lastState = null;
+
+		private volatile boolean keyframeRequired = false;
+
+		private volatile Thread runner = null;
+
+		/**
+		 * How long the thread of the agent waits for a new agent before it
+		 * checks the connection again.
+		 */
+		private static final long IDLE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+
+		public ClientProtocolSocket(Socket sck, String name,
+				Class<? extends Agent> agentClass, String team,
+				String passphrase, boolean binary, boolean delta) throws IOException {
 			super(sck);
 
-			String team = "default";
-			String passphrase = "";
-			
-			if (teamOverride == null) {
-				
-				Membership m = agentClassStatic.getAnnotation(Membership.class);
-	
-				if (m != null) {
-					team = m.team();
-					passphrase = m.passphrase();
-				}
-			} else {
-				team = teamOverride;
-				passphrase = passphraseOverride;
-			}
+			this.agentClass = agentClass;
 
-			sendMessage(new Message.RegisterMessage(team, passphrase));
+			this.name = name;
+
+			sendMessage(new Message.RegisterMessage(team, passphrase,
+					binary ? 1 << MessageCodec.FORMAT_BINARY : 0,
+					delta ? MessageCodec.FEATURE_DELTA_STATES : 0));
+
+		}
+
+		public ClientProtocolSocket(ProtocolSocket session, int slot,
+				String name, Class<? extends Agent> agentClass, String team,
+				String passphrase, boolean binary, boolean delta)
+				throws IOException {
+			super(session, slot);
+
+			this.agentClass = agentClass;
 
 			this.name = name;
 
+			sendMessage(new Message.RegisterMessage(team, passphrase,
+					binary ? 1 << MessageCodec.FORMAT_BINARY : 0,
+					delta ? MessageCodec.FEATURE_DELTA_STATES : 0));
+
+		}
+
+		public ClientProtocolSocket(LocalServer server, String name,
+				Class<? extends Agent> agentClass, String team,
+				String passphrase) throws IOException {
+			super(server);
+
+			this.agentClass = agentClass;
+
+			this.name = name;
+
+			// messages are not encoded, so neither format nor delta states
+			// would save anything
+			sendMessage(new Message.RegisterMessage(team, passphrase));
+
 		}
 
 		public String getName() {
@@ -187,8 +381,10 @@ public abstract class Agent {
 
 			switch (status) {
 			case UNKNOWN:
-				if (message instanceof Message.AcknowledgeMessage)
+				if (message instanceof Message.AcknowledgeMessage) {
+					setFormat(((Message.AcknowledgeMessage) message).getFormat());
 					status = Status.REGISTERED;
+				}
 				break;
 
 			case REGISTERED:
@@ -199,7 +395,7 @@ public abstract class Agent {
 						ProxyClassLoader loader = new ProxyClassLoader();
 
 						Class<Agent> agentClass = (Class<Agent>) loader
-								.loadClass(agentClassStatic.getCanonicalName());
+								.loadClass(this.agentClass.getCanonicalName());
 
 						Agent agent = agentClass.newInstance();
 
@@ -222,9 +418,16 @@ public abstract class Agent {
 
 						sendMessage(new Message.AcknowledgeMessage());
 
+						lastState = null;
+
 						status = Status.INITIALIZED;
 						
 						this.agent = agent;
+
+						Thread runner = this.runner;
+
+						if (runner != null)
+							LockSupport.unpark(runner);
 						
 					} catch (Throwable e) {
 						e.printStackTrace();
@@ -235,18 +438,24 @@ public abstract class Agent {
 				break;
 
 			case INITIALIZED:
-				if (message instanceof Message.StateMessage)
-					super.handleMessage(message);
+				if (message instanceof StateDeltaMessage) {
 
-				if ((message instanceof Message.ReceiveMessage)
-						|| (message instanceof Message.StateMessage)) {
+					message = reconstruct((StateDeltaMessage) message);
 
-					synchronized (inbox) {
+					if (message == null)
+						break;
 
-						inbox.add(message);
-						inbox.notifyAll();
+				}
 
-					}
+				if (message instanceof StateMessage) {
+					lastState = ((StateMessage) message).getNeighborhood();
+					keyframeRequired = false;
+				}
+
+				if ((message instanceof Message.ReceiveMessage)
+						|| (message instanceof Message.StateMessage)) {
+
+					inbox.add(message);
 
 				}
 
@@ -259,6 +468,7 @@ public abstract class Agent {
 					}
 
 					agent = null;
+					lastState = null;
 					status = Status.REGISTERED;
 
 				}
@@ -269,6 +479,46 @@ public abstract class Agent {
 
 		}
 
+		/**
+		 * Applies a delta to the last state. If the result does not match the
+		 * state on the server, the delta is dropped and the next scan requests
+		 * a complete state.
+		 */
+		private StateMessage reconstruct(StateDeltaMessage delta) {
+
+			Neighborhood next = null;
+
+			if (lastState != null && lastState.getSize() == delta.getSize())
+				next = lastState.apply(delta.getShiftX(), delta.getShiftY(),
+						delta.getChanges());
+
+			if (next == null || next.checksum() != delta.getChecksum()) {
+
+				lastState = null;
+
+				// subscribed agents might never scan again
+				if (!keyframeRequired) {
+					keyframeRequired = true;
+					sendMessage(new Message.ScanMessage(delta.getStamp(), true));
+				}
+
+				return null;
+			}
+
+			StateMessage state = new StateMessage(delta.getDirection(), next);
+
+			state.setStamp(delta.getStamp());
+
+			return state;
+
+		}
+
+		public void scan(int stamp) {
+
+			sendMessage(new Message.ScanMessage(stamp, keyframeRequired));
+
+		}
+
 		public boolean isAlive() {
 			return status == Status.INITIALIZED;
 		}
@@ -289,27 +539,33 @@ public abstract class Agent {
 			}
 			super.onTerminate();
 			terminated = true;
+			agent = null;
+			
+			// wakes up the callback thread and the agent thread
+			inbox.add(new Message.TerminateMessage());
+
+			Thread runner = this.runner;
+
+			if (runner != null)
+				LockSupport.unpark(runner);
 		}
 
 		@Override
 		public void run() {
-			Thread messages = new Thread(new Runnable() {
+			Thread messages = Threads.newThread(getName() + " callbacks", true, new Runnable() {
 
 				@Override
 				public void run() {
 
-					while (true) {
+					while (!terminated) {
 
-						synchronized (inbox) {
-							while (inbox.isEmpty()) {
-								try {
-									inbox.wait();
-								} catch (InterruptedException e) {
-								}
-							}
-						}
+						Message msg;
 
-						Message msg = inbox.poll();
+						try {
+							msg = inbox.take();
+						} catch (InterruptedException e) {
+							continue;
+						}
 
 						if (agent != null && isAlive()) {
 							try {
@@ -340,15 +596,18 @@ public abstract class Agent {
 
 			try {
 
-				while (true) {
+				runner = Thread.currentThread();
+
+				while (!terminated) {
 
 					if (agent != null)
 						agent.run();
 
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-					}
+					// pause even if run() returned while the agent is still
+					// alive, the thread is woken up as soon as a new agent is
+					// initialized
+					if (!terminated)
+						LockSupport.parkNanos(this, IDLE_TIMEOUT);
 
 				}
 
@@ -359,54 +618,251 @@ public abstract class Agent {
 
 	}
 
-	@SuppressWarnings("unchecked")
-	public static void main(String[] args) throws NumberFormatException,
-			UnknownHostException, IOException, ClassNotFoundException {
+	/**
+	 * Connects agents of a single class to a server. Several launchers can be
+	 * used in the same virtual machine, for instance to play many games in one
+	 * process.
+	 */
+	public static class Launcher {
 
-		agentClassStatic = (Class<Agent>) Class.forName(args[1]);
+		private Class<? extends Agent> agentClass;
 
-		int count = 1;
+		private String team = "default";
 
-		if (args.length > 2)
-			count = Integer.parseInt(args[2]);
+		private String passphrase = "";
 
-		if (args.length > 3)
-			teamOverride = args[3];
+		private boolean binary = binaryFormat;
 
-		if (args.length > 4)
-			passphraseOverride = args[4];
-		
-		for (int i = 0; i < count; i++) {
-			Socket socket = new Socket(args[0], 5000);
-			socket.setTcpNoDelay(true);
-			
-			ClientProtocolSocket client = new ClientProtocolSocket(socket,
-					"Client " + i);
+		private boolean delta = deltaStates;
 
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {}
-			
-			Thread thread = new Thread(client);
-			thread.setName(client.getName());
-			thread.start();
+		private boolean multiplex = multiplexed;
+
+		private boolean prewarm = prewarmClasses;
+
+		private Vector<ClientProtocolSocket> clients = new Vector<ClientProtocolSocket>();
+
+		private Vector<ProtocolSocket> sessions = new Vector<ProtocolSocket>();
+
+		/**
+		 * Creates a launcher for agents of the team given by the
+		 * {@link Membership} annotation of the class.
+		 */
+		public Launcher(Class<? extends Agent> agentClass) {
+
+			this.agentClass = agentClass;
+
+			Membership m = agentClass.getAnnotation(Membership.class);
+
+			if (m != null) {
+				team = m.team();
+				passphrase = m.passphrase();
+			}
+
+		}
+
+		public Launcher(Class<? extends Agent> agentClass, String team,
+				String passphrase) {
+
+			this.agentClass = agentClass;
+			this.team = team;
+			this.passphrase = passphrase;
+
+		}
+
+		public String getTeam() {
+			return team;
+		}
+
+		/**
+		 * Sets if the binary message format is requested from the server.
+		 */
+		public void setBinaryFormat(boolean binary) {
+			this.binary = binary;
+		}
+
+		/**
+		 * Sets if the server should send only the changed cells of the
+		 * neighborhood instead of the complete neighborhood in every state.
+		 */
+		public void setDeltaStates(boolean delta) {
+			this.delta = delta;
+		}
+
+		/**
+		 * Sets if all agents of a {@link #connect(String, int, int)} call
+		 * share a single connection to the server instead of opening one
+		 * connection each.
+		 */
+		public void setMultiplexed(boolean multiplex) {
+			this.multiplex = multiplex;
+		}
+
+		/**
+		 * Sets if the class files of the agent are read before the agents
+		 * connect, instead of when the first agent is initialized.
+		 */
+		public void setPrewarm(boolean prewarm) {
+			this.prewarm = prewarm;
+		}
+
+		private void prewarm() {
+
+			if (!prewarm)
+				return;
+
+			prewarm = false;
 
-			clients.add(client);
+			ProxyClassLoader.prewarm(agentClass.getName());
 
 		}
 
-		while (true) {
+		/**
+		 * Connects new agents to a server.
+		 * 
+		 * @param host
+		 *            the host of the server
+		 * @param port
+		 *            the port of the server
+		 * @param count
+		 *            the number of agents
+		 */
+		public void connect(String host, int port, int count)
+				throws IOException {
 
-			boolean alive = false;
+			prewarm();
 
-			for (ClientProtocolSocket c : clients) {
+			if (multiplex) {
 
-				alive |= !c.terminated;
+				Socket socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
 
+				ProtocolSocket session = new ProtocolSocket(socket);
+
+				sessions.add(session);
+
+				for (int i = 0; i < count; i++) {
+
+					ClientProtocolSocket client = new ClientProtocolSocket(
+							session, i, "Client " + clients.size(),
+							agentClass, team, passphrase, binary, delta);
+
+					Threads.newThread(client.getName(), true, client).start();
+
+					clients.add(client);
+
+				}
+
+				return;
 			}
 
-			if (!alive)
-				break;
+			for (int i = 0; i < count; i++) {
+				Socket socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+
+				ClientProtocolSocket client = new ClientProtocolSocket(socket,
+						"Client " + clients.size(), agentClass, team,
+						passphrase, binary, delta);
+
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {}
+
+				Threads.newThread(client.getName(), true, client).start();
+
+				clients.add(client);
+
+			}
+
+		}
+
+		/**
+		 * Connects new agents to a server in the same virtual machine. The
+		 * agents talk to the server without using the network.
+		 * 
+		 * @param server
+		 *            the server
+		 * @param count
+		 *            the number of agents
+		 */
+		public void connect(LocalServer server, int count) throws IOException {
+
+			prewarm();
+
+			for (int i = 0; i < count; i++) {
+
+				ClientProtocolSocket client = new ClientProtocolSocket(server,
+						"Client " + clients.size(), agentClass, team,
+						passphrase);
+
+				Threads.newThread(client.getName(), true, client).start();
+
+				clients.add(client);
+
+			}
+
+		}
+
+		/**
+		 * Checks if any of the agents is still connected.
+		 */
+		public boolean isAlive() {
+
+			synchronized (clients) {
+
+				for (ClientProtocolSocket c : clients) {
+					if (!c.terminated)
+						return true;
+				}
+
+			}
+
+			return false;
+
+		}
+
+		/**
+		 * Disconnects all agents.
+		 */
+		public void close() {
+
+			Vector<ClientProtocolSocket> closing;
+
+			synchronized (clients) {
+				closing = new Vector<ClientProtocolSocket>(clients);
+			}
+
+			for (ClientProtocolSocket c : closing)
+				c.close();
+
+			for (ProtocolSocket session : sessions)
+				session.close();
+
+		}
+
+	}
+
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws NumberFormatException,
+			UnknownHostException, IOException, ClassNotFoundException {
+
+		Class<Agent> agentClass = (Class<Agent>) Class.forName(args[1]);
+
+		int count = 1;
+
+		if (args.length > 2)
+			count = Integer.parseInt(args[2]);
+
+		Launcher launcher;
+
+		if (args.length > 3)
+			launcher = new Launcher(agentClass, args[3], args.length > 4 ? args[4]
+					: null);
+		else
+			launcher = new Launcher(agentClass);
+
+		launcher.connect(args[0], 5000, count);
+
+		while (launcher.isAlive()) {
 
 			try {
 				Thread.sleep(100);
@@ -477,6 +933,52 @@ public abstract class Agent {
 
 	}
 
+	/**
+	 * Send the same message to several agents in the same team. The message
+	 * is transferred only once, so this is faster than sending it to every
+	 * agent separately. Only the agents that are close enough receive it.
+	 * 
+	 * @param to
+	 *            the ids of the agents that should receive this message
+	 * @param message
+	 *            the message as a byte array
+	 */
+	public final void send(int[] to, byte[] message) {
+
+		if (!isAlive())
+			return;
+
+		client.sendMessage(new Message.MulticastMessage(to, message));
+
+	}
+
+	/**
+	 * Send a message to all agents in the same team that are close enough.
+	 * 
+	 * @param message
+	 *            the message as a byte array
+	 */
+	public final void broadcast(byte[] message) {
+
+		if (!isAlive())
+			return;
+
+		client.sendMessage(new Message.MulticastMessage(null, message));
+
+	}
+
+	/**
+	 * Send a message to all agents in the same team that are close enough.
+	 * 
+	 * @param message
+	 *            the message as a string
+	 */
+	public final void broadcast(String message) {
+
+		broadcast(message.getBytes());
+
+	}
+
 	/**
 	 * Sends a move command to the server. Note that depending on the current
 	 * state of the agent, the command may be acknowledged or ignored. You
@@ -507,7 +1009,28 @@ public abstract class Agent {
 		if (!isAlive())
 			return;
 
-		client.sendMessage(new Message.ScanMessage(stamp));
+		client.scan(stamp);
+
+	}
+
+	/**
+	 * Asks the server to send the local state of the environment without
+	 * scan requests. The state is sent at the end of every <tt>period</tt>-th
+	 * game step and at the end of every step in which the agent moved to
+	 * another cell. It is returned to the agent using the
+	 * {@link #state(int, Neighborhood, Direction)} callback, the stamp is the
+	 * number of the step.
+	 * 
+	 * @param period
+	 *            the number of steps between two states, zero stops the
+	 *            updates
+	 */
+	public final void subscribe(int period) {
+
+		if (!isAlive())
+			return;
+
+		client.sendMessage(new Message.SubscribeMessage(period));
 
 	}
 
@@ -19,6 +19,9 @@ package org.grid.agent.sample;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.grid.agent.Agent;
 import org.grid.agent.Membership;
@@ -79,16 +82,8 @@ public class SampleAgent extends Agent {
 	@Override
 	public void state(int stamp, Neighborhood neighborhood, Direction direction) {
 
-		
-		synchronized (waitMutex) {
-			this.neighborhood = neighborhood;
-			this.direction = direction;
+		states.offer(new Scan(neighborhood, direction));
 
-			if (state != AgentState.RETURN)
-				state = AgentState.EXPLORE;
-			
-			waitMutex.notify();
-		}
 	}
 
 	@Override
@@ -154,7 +149,8 @@ public class SampleAgent extends Agent {
 
 			try {
 
-				scanAndWait();
+				if (!scanAndWait())
+					continue;
 
 				analyzeNeighborhood(neighborhood);
 
@@ -212,18 +208,46 @@ public class SampleAgent extends Agent {
 
 	}
 
-	private Object waitMutex = new Object();
+	private static class Scan {
+
+		private Neighborhood neighborhood;
+
+		private Direction direction;
+
+		public Scan(Neighborhood neighborhood, Direction direction) {
+			this.neighborhood = neighborhood;
+			this.direction = direction;
+		}
+
+	}
+
+	// a blocking queue instead of a monitor, so that a waiting agent does not
+	// pin the carrier of a virtual thread
+	private BlockingQueue<Scan> states = new LinkedBlockingQueue<Scan>();
 
 	private Neighborhood neighborhood;
 
 	private Direction direction;
 
-	private void scanAndWait() throws InterruptedException {
+	private boolean scanAndWait() throws InterruptedException {
 
-		synchronized (waitMutex) {
-			scan(0);
-			waitMutex.wait();
-		}
+		// forget the answers to earlier scans
+		states.clear();
+
+		scan(0);
+
+		Scan scan = states.poll(1, TimeUnit.SECONDS);
+
+		if (scan == null)
+			return false;
+
+		neighborhood = scan.neighborhood;
+		direction = scan.direction;
+
+		if (state != AgentState.RETURN)
+			state = AgentState.EXPLORE;
+
+		return true;
 
 	}
 
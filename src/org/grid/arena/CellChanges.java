@@ -0,0 +1,83 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.arena;
+
+import java.util.Arrays;
+
+/**
+ * Collects the cells of an arena that changed since the changes were last
+ * taken. Every cell is listed once no matter how many times it changed.
+ */
+public class CellChanges {
+
+	private boolean[] marked;
+
+	private int[] cells = new int[64];
+
+	private int count = 0;
+
+	private boolean all = true;
+
+	public CellChanges(int size) {
+
+		marked = new boolean[size];
+
+	}
+
+	public synchronized void mark(int cell) {
+
+		if (all || marked[cell])
+			return;
+
+		if (count == cells.length)
+			cells = Arrays.copyOf(cells, cells.length * 2);
+
+		marked[cell] = true;
+		cells[count++] = cell;
+
+	}
+
+	/**
+	 * Marks the whole arena as changed.
+	 */
+	public synchronized void markAll() {
+
+		all = true;
+
+	}
+
+	/**
+	 * Returns the changed cells and clears the changes.
+	 *
+	 * @return the changed cells or <tt>null</tt> if the whole arena changed
+	 */
+	public synchronized int[] take() {
+
+		int[] result = all ? null : Arrays.copyOf(cells, count);
+
+		for (int i = 0; i < count; i++)
+			marked[cells[i]] = false;
+
+		count = 0;
+		all = false;
+
+		return result;
+
+	}
+
+}
@@ -20,9 +20,14 @@ package org.grid.arena;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
 import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Vector;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 public class SwingView extends JPanel implements ArenaView {
 
@@ -32,6 +37,18 @@ public class SwingView extends JPanel implements ArenaView {
 
 	protected int cellBorder = 2;
 
+	/**
+	 * The whole view is repainted when more than one in this many cells
+	 * changed.
+	 */
+	private static final int MAX_CHANGED = 8;
+
+	/**
+	 * The largest background image in pixels, larger fields are painted cell
+	 * by cell.
+	 */
+	private static final long MAX_BACKGROUND = 4096 * 4096;
+
 	protected Color borderColor = Color.DARK_GRAY;
 
 	
@@ -118,6 +135,35 @@ public class SwingView extends JPanel implements ArenaView {
 	
 	private Palette palette = null;
 	
+	private BufferedImage background = null;
+	
+	private Arena backgroundArena = null;
+	
+	private Vector<Rectangle> regions = new Vector<Rectangle>();
+	
+	private boolean regionsPending = false;
+	
+	private Runnable regionPainter = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			Vector<Rectangle> pending;
+			
+			synchronized (regions) {
+				pending = regions;
+				regions = new Vector<Rectangle>();
+				regionsPending = false;
+			}
+			
+			// repaint(Rectangle) would merge all the regions into one
+			// bounding rectangle, which is usually most of the field
+			for (Rectangle r : pending)
+				paintImmediately(r);
+			
+		}
+	};
+	
 	public SwingView(int cellSize) {
 
 		setDoubleBuffered(true);
@@ -135,9 +181,11 @@ public class SwingView extends JPanel implements ArenaView {
 		
 		Palette p = palette == null ? grassPalette : palette;
 		
-		for (int j = 0; j < view.getHeight(); j++) {
+		Rectangle cells = getCells(g, view, 0);
+		
+		for (int j = cells.y; j < cells.y + cells.height; j++) {
 
-			for (int i = 0; i < view.getWidth(); i++) {
+			for (int i = cells.x; i < cells.x + cells.width; i++) {
 
 				int base = view.getBaseTile(i, j);
 
@@ -152,20 +200,33 @@ public class SwingView extends JPanel implements ArenaView {
 	
 	protected void paintObjects(Graphics g, Arena view) {
 		
+		paintObjects(g, view, true);
+		
+	}
+	
+	/**
+	 * Paints the bodies in the arena.
+	 * 
+	 * @param walls
+	 *            false if the walls are already painted with the cached
+	 *            background
+	 */
+	protected void paintObjects(Graphics g, Arena view, boolean walls) {
+		
 		Color color = null;
 
-		for (int j = 0; j < view.getHeight(); j++) {
+		// a body with an offset reaches into the neighboring cells
+		Rectangle cells = getCells(g, view, 1);
+		
+		for (int j = cells.y; j < cells.y + cells.height; j++) {
 
-			for (int i = 0; i < view.getWidth(); i++) {
+			for (int i = cells.x; i < cells.x + cells.width; i++) {
 				
 				int body = view.getBodyTile(i, j);
 
 				if (body >= Arena.TILE_WALL_0 && body <= Arena.TILE_WALL_9) {
-					color = wallColors[body - Arena.TILE_WALL_0];
-					g.setColor(color);
-					g.fillRect(i * cellSize + cellBorder, j * cellSize
-							+ cellBorder, cellSize - 2 * cellBorder,
-							cellSize - 2 * cellBorder);
+					if (walls)
+						paintWall(g, i, j, body);
 					continue;
 				}
 				
@@ -213,6 +274,121 @@ public class SwingView extends JPanel implements ArenaView {
 		
 	}
 	
+	private void paintWall(Graphics g, int i, int j, int body) {
+		
+		g.setColor(wallColors[body - Arena.TILE_WALL_0]);
+		g.fillRect(i * cellSize + cellBorder, j * cellSize + cellBorder,
+				cellSize - 2 * cellBorder, cellSize - 2 * cellBorder);
+		
+	}
+	
+	/**
+	 * Paints the base tiles and the walls of the arena with a single image.
+	 * The image is rendered once and reused until the zoom, the palette or
+	 * the arena changes, so the base tiles and the walls must not change
+	 * while the arena is shown.
+	 * 
+	 * @return false if the arena is too large to be cached and nothing was
+	 *         painted
+	 */
+	protected boolean paintStaticBackground(Graphics g, Arena view) {
+		
+		BufferedImage image;
+		
+		synchronized (this) {
+			
+			if (background == null || backgroundArena != view) {
+				
+				background = null;
+				backgroundArena = view;
+				
+				long pixels = (long) view.getWidth() * view.getHeight() * cellSize * cellSize;
+				
+				if (pixels == 0 || pixels > MAX_BACKGROUND)
+					return false;
+				
+				background = renderBackground(view);
+				
+			}
+			
+			image = background;
+			
+		}
+		
+		g.drawImage(image, 0, 0, null);
+		
+		return true;
+		
+	}
+	
+	private BufferedImage renderBackground(Arena view) {
+		
+		int width = view.getWidth() * cellSize;
+		int height = view.getHeight() * cellSize;
+		
+		GraphicsConfiguration configuration = getGraphicsConfiguration();
+		
+		BufferedImage image = configuration == null ? new BufferedImage(width,
+				height, BufferedImage.TYPE_INT_RGB) : configuration
+				.createCompatibleImage(width, height);
+		
+		Graphics g = image.getGraphics();
+		
+		paintBackground(g, view);
+		
+		for (int j = 0; j < view.getHeight(); j++) {
+			for (int i = 0; i < view.getWidth(); i++) {
+				
+				int body = view.getBodyTile(i, j);
+				
+				if (body >= Arena.TILE_WALL_0 && body <= Arena.TILE_WALL_9)
+					paintWall(g, i, j, body);
+				
+			}
+		}
+		
+		g.dispose();
+		
+		return image;
+		
+	}
+	
+	/**
+	 * Paints the arena, using the cached background if possible.
+	 */
+	protected void paintArena(Graphics g, Arena view) {
+		
+		if (paintStaticBackground(g, view)) {
+			paintObjects(g, view, false);
+			return;
+		}
+		
+		paintBackground(g, view);
+		
+		paintObjects(g, view);
+		
+	}
+	
+	/**
+	 * Returns the cells that intersect the clip of the graphics, extended
+	 * by a margin of cells.
+	 */
+	protected Rectangle getCells(Graphics g, Arena view, int margin) {
+		
+		Rectangle clip = g.getClipBounds();
+		
+		if (clip == null)
+			return new Rectangle(0, 0, view.getWidth(), view.getHeight());
+		
+		int x1 = Math.max(0, clip.x / cellSize - margin);
+		int y1 = Math.max(0, clip.y / cellSize - margin);
+		int x2 = Math.min(view.getWidth(), (clip.x + clip.width - 1) / cellSize + 1 + margin);
+		int y2 = Math.min(view.getHeight(), (clip.y + clip.height - 1) / cellSize + 1 + margin);
+		
+		return new Rectangle(x1, y1, Math.max(0, x2 - x1), Math.max(0, y2 - y1));
+		
+	}
+	
 	private void drawBorderedCircle(Graphics g, int x, int y, int d) {
 		g.fillOval(x, y, d, d);
 		g.setColor(borderColor);
@@ -247,9 +423,7 @@ public class SwingView extends JPanel implements ArenaView {
 
 		}
 
-		paintBackground(g, view);
-		
-		paintObjects(g, view);
+		paintArena(g, view);
 
 	}
 
@@ -277,14 +451,62 @@ public class SwingView extends JPanel implements ArenaView {
 		if (view == null)
 			return;
 		
+		int[] changes = (view instanceof TrackedArena) ? ((TrackedArena) view)
+				.takeChanges() : null;
+		
+		boolean replaced;
+		
 		synchronized (this) {
+			replaced = this.view != view;
+			
 			this.view = view;
 			
 			this.size = new Dimension(view.getWidth() * cellSize, view.getHeight()
 					* cellSize);
 		}
 		
-		repaint();
+		if (replaced || changes == null
+				|| changes.length > view.getWidth() * view.getHeight() / MAX_CHANGED) {
+			repaint();
+			return;
+		}
+		
+		if (changes.length == 0)
+			return;
+		
+		int width = view.getWidth();
+		
+		Vector<Rectangle> changed = new Vector<Rectangle>();
+		Rectangle last = null;
+		
+		for (int cell : changes) {
+			
+			// a body with an offset is painted over the neighboring cells
+			Rectangle r = new Rectangle(((cell % width) - 1) * cellSize,
+					((cell / width) - 1) * cellSize, 3 * cellSize, 3 * cellSize);
+			
+			// a moving body marks two neighboring cells one after another
+			if (last != null && last.intersects(r)) {
+				last.add(r);
+				continue;
+			}
+			
+			changed.add(r);
+			last = r;
+		}
+		
+		synchronized (regions) {
+			
+			regions.addAll(changed);
+			
+			if (regionsPending)
+				return;
+			
+			regionsPending = true;
+			
+		}
+		
+		SwingUtilities.invokeLater(regionPainter);
 		
 	}
 
@@ -298,6 +520,8 @@ public class SwingView extends JPanel implements ArenaView {
 		
 		synchronized (this) {
 	
+			background = null;
+			
 			if (this.view != null)
 				this.size = new Dimension(view.getWidth() * cellSize, view.getHeight()
 						* cellSize);
@@ -312,6 +536,11 @@ public class SwingView extends JPanel implements ArenaView {
 	}
 	
 	public void setBasePallette(Palette p) {
-		palette = p;
+		
+		synchronized (this) {
+			palette = p;
+			background = null;
+		}
+		
 	}
 }
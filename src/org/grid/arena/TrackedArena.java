@@ -0,0 +1,38 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.arena;
+
+/**
+ * An arena that knows which of its cells changed. A view that is updated
+ * with such an arena only has to repaint the cells that changed since its
+ * previous update instead of the whole arena.
+ */
+public interface TrackedArena extends Arena {
+
+	/**
+	 * Returns the cells that changed since the last call and starts a new
+	 * set of changes. A cell is given as <tt>y * width + x</tt>. The changes
+	 * are handed out only once, so an arena should be tracked by a single
+	 * view.
+	 *
+	 * @return the changed cells or <tt>null</tt> if the whole arena has to
+	 *         be repainted
+	 */
+	public int[] takeChanges();
+
+}
@@ -0,0 +1,407 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.grid.protocol.Message.AcknowledgeMessage;
+import org.grid.protocol.Message.Direction;
+import org.grid.protocol.Message.InitializeMessage;
+import org.grid.protocol.Message.MoveMessage;
+import org.grid.protocol.Message.MulticastMessage;
+import org.grid.protocol.Message.ReceiveMessage;
+import org.grid.protocol.Message.RegisterMessage;
+import org.grid.protocol.Message.ScanMessage;
+import org.grid.protocol.Message.SendMessage;
+import org.grid.protocol.Message.SlotMessage;
+import org.grid.protocol.Message.StateDeltaMessage;
+import org.grid.protocol.Message.StateMessage;
+import org.grid.protocol.Message.SubscribeMessage;
+import org.grid.protocol.Message.TerminateMessage;
+
+/**
+ * Compact binary encoding of protocol messages. A message is written as a
+ * single type byte followed by its fields. Neighborhood cells are written as
+ * one byte codes, only the cells that contain a team agent are followed by the
+ * id of the agent.
+ *
+ * Fields that were added to a message later are written at its end and only
+ * read if the frame contains them, so peers of an older version can still
+ * talk to each other.
+ */
+final class BinaryFormat {
+
+	private static final byte REGISTER = 1;
+	private static final byte ACKNOWLEDGE = 2;
+	private static final byte INITIALIZE = 3;
+	private static final byte TERMINATE = 4;
+	private static final byte SCAN = 5;
+	private static final byte STATE = 6;
+	private static final byte MOVE = 7;
+	private static final byte SEND = 8;
+	private static final byte RECEIVE = 9;
+	private static final byte STATE_DELTA = 10;
+	private static final byte SUBSCRIBE = 11;
+	private static final byte SLOT = 12;
+	private static final byte MULTICAST = 13;
+
+	private static final int CELL_AGENT = 0x7F;
+
+	private static final Direction[] directions = Direction.values();
+
+	private BinaryFormat() {
+
+	}
+
+	public static void write(Message message, DataOutputStream out)
+			throws IOException {
+
+		if (message instanceof ScanMessage) {
+
+			out.writeByte(SCAN);
+			out.writeInt(((ScanMessage) message).getStamp());
+			out.writeBoolean(((ScanMessage) message).isKeyframe());
+
+		} else if (message instanceof StateMessage) {
+
+			StateMessage m = (StateMessage) message;
+
+			out.writeByte(STATE);
+			out.writeInt(m.getStamp());
+			writeDirection(m.getDirection(), out);
+			writeNeighborhood(m.getNeighborhood(), out);
+
+		} else if (message instanceof StateDeltaMessage) {
+
+			StateDeltaMessage m = (StateDeltaMessage) message;
+
+			out.writeByte(STATE_DELTA);
+			out.writeInt(m.getStamp());
+			writeDirection(m.getDirection(), out);
+			out.writeShort(m.getSize());
+			out.writeShort(m.getShiftX());
+			out.writeShort(m.getShiftY());
+			out.writeInt(m.getChecksum());
+
+			int[] changes = m.getChanges();
+
+			out.writeShort(changes.length / 2);
+
+			for (int i = 0; i + 1 < changes.length; i += 2) {
+				out.writeShort(changes[i]);
+				writeCell(changes[i + 1], out);
+			}
+
+		} else if (message instanceof SlotMessage) {
+
+			out.writeByte(SLOT);
+			out.writeInt(((SlotMessage) message).getSlot());
+
+			Message m = ((SlotMessage) message).getMessage();
+
+			out.writeBoolean(m != null);
+
+			if (m != null)
+				write(m, out);
+
+		} else if (message instanceof SubscribeMessage) {
+
+			out.writeByte(SUBSCRIBE);
+			out.writeInt(((SubscribeMessage) message).getPeriod());
+
+		} else if (message instanceof MoveMessage) {
+
+			out.writeByte(MOVE);
+			writeDirection(((MoveMessage) message).getDirection(), out);
+
+		} else if (message instanceof SendMessage) {
+
+			out.writeByte(SEND);
+			out.writeInt(((SendMessage) message).getTo());
+			writeBytes(((SendMessage) message).getMessage(), out);
+
+		} else if (message instanceof MulticastMessage) {
+
+			int[] to = ((MulticastMessage) message).getTo();
+
+			out.writeByte(MULTICAST);
+			out.writeInt(to == null ? -1 : to.length);
+			if (to != null) {
+				for (int id : to)
+					out.writeInt(id);
+			}
+			writeBytes(((MulticastMessage) message).getMessage(), out);
+
+		} else if (message instanceof ReceiveMessage) {
+
+			out.writeByte(RECEIVE);
+			out.writeInt(((ReceiveMessage) message).getFrom());
+			writeBytes(((ReceiveMessage) message).getMessage(), out);
+
+		} else if (message instanceof RegisterMessage) {
+
+			RegisterMessage m = (RegisterMessage) message;
+
+			out.writeByte(REGISTER);
+			writeString(m.getTeam(), out);
+			writeString(m.getPassphrase(), out);
+			out.writeInt(m.getFormats());
+			out.writeInt(m.getFeatures());
+
+		} else if (message instanceof AcknowledgeMessage) {
+
+			out.writeByte(ACKNOWLEDGE);
+			out.writeByte(((AcknowledgeMessage) message).getFormat());
+			out.writeInt(((AcknowledgeMessage) message).getFeatures());
+
+		} else if (message instanceof InitializeMessage) {
+
+			InitializeMessage m = (InitializeMessage) message;
+
+			out.writeByte(INITIALIZE);
+			out.writeInt(m.getId());
+			out.writeInt(m.getMaxMessageSize());
+			out.writeInt(m.getGameSpeed());
+
+		} else if (message instanceof TerminateMessage) {
+
+			out.writeByte(TERMINATE);
+
+		} else {
+			throw new IOException("Message type not supported by binary format: "
+					+ message.getClass().getName());
+		}
+
+	}
+
+	/**
+	 * Reads a single message. The stream has to contain exactly one frame,
+	 * the lengths in the message are checked against the bytes that are
+	 * available.
+	 *
+	 * @return the message or <tt>null</tt> if the type of the message is not
+	 *         known
+	 */
+	public static Message read(DataInputStream in) throws IOException {
+
+		switch (in.readByte()) {
+		case SCAN:
+			return new ScanMessage(in.readInt(), in.available() > 0 ? in
+					.readBoolean() : false);
+		case STATE: {
+			int stamp = in.readInt();
+			StateMessage m = new StateMessage(readDirection(in),
+					readNeighborhood(in));
+			m.setStamp(stamp);
+			return m;
+		}
+		case STATE_DELTA: {
+			int stamp = in.readInt();
+			Direction direction = readDirection(in);
+			int size = in.readShort();
+			int shiftX = in.readShort();
+			int shiftY = in.readShort();
+			int checksum = in.readInt();
+			int[] changes = new int[in.readUnsignedShort() * 2];
+			for (int i = 0; i < changes.length; i += 2) {
+				changes[i] = in.readUnsignedShort();
+				changes[i + 1] = readCell(in);
+			}
+			StateDeltaMessage m = new StateDeltaMessage(direction, size,
+					shiftX, shiftY, changes, checksum);
+			m.setStamp(stamp);
+			return m;
+		}
+		case SLOT: {
+			int slot = in.readInt();
+			if (!in.readBoolean())
+				return new SlotMessage(slot, null);
+			Message m = read(in);
+			// a message of unknown type is skipped, not the whole slot
+			return m == null ? null : new SlotMessage(slot, m);
+		}
+		case SUBSCRIBE:
+			return new SubscribeMessage(in.readInt());
+		case MOVE:
+			return new MoveMessage(readDirection(in));
+		case SEND:
+			return new SendMessage(in.readInt(), readBytes(in));
+		case MULTICAST: {
+			int count = in.readInt();
+			if (count > MessageCodec.MAX_FRAME_LENGTH / 4)
+				throw new IOException("Illegal recipient count: " + count);
+			int[] to = null;
+			if (count >= 0) {
+				to = new int[count];
+				for (int i = 0; i < count; i++)
+					to[i] = in.readInt();
+			}
+			return new MulticastMessage(to, readBytes(in));
+		}
+		case RECEIVE:
+			return new ReceiveMessage(in.readInt(), readBytes(in));
+		case REGISTER:
+			return new RegisterMessage(readString(in), readString(in), in
+					.readInt(), in.available() >= 4 ? in.readInt() : 0);
+		case ACKNOWLEDGE:
+			return new AcknowledgeMessage(in.readByte(),
+					in.available() >= 4 ? in.readInt() : 0);
+		case INITIALIZE:
+			return new InitializeMessage(in.readInt(), in.readInt(), in
+					.readInt());
+		case TERMINATE:
+			return new TerminateMessage();
+		}
+
+		return null;
+
+	}
+
+	private static void writeDirection(Direction direction, DataOutputStream out)
+			throws IOException {
+
+		out.writeByte(direction == null ? -1 : direction.ordinal());
+
+	}
+
+	private static Direction readDirection(DataInputStream in)
+			throws IOException {
+
+		int d = in.readByte();
+
+		if (d < 0 || d >= directions.length)
+			return null;
+
+		return directions[d];
+
+	}
+
+	private static void writeNeighborhood(Neighborhood neighborhood,
+			DataOutputStream out) throws IOException {
+
+		if (neighborhood == null) {
+			out.writeShort(-1);
+			return;
+		}
+
+		out.writeShort(neighborhood.getSize());
+
+		int[] grid = neighborhood.getGrid();
+
+		for (int i = 0; i < grid.length; i++)
+			writeCell(grid[i], out);
+
+	}
+
+	private static Neighborhood readNeighborhood(DataInputStream in)
+			throws IOException {
+
+		int size = in.readShort();
+
+		if (size == -1)
+			return null;
+
+		long cells = (size * 2L + 1) * (size * 2L + 1);
+
+		// every cell takes at least one byte of the frame
+		if (size < 0 || cells > MessageCodec.MAX_FRAME_LENGTH
+				|| cells > in.available())
+			throw new IOException("Illegal neighborhood size: " + size);
+
+		int[] grid = new int[(int) cells];
+
+		for (int i = 0; i < grid.length; i++)
+			grid[i] = readCell(in);
+
+		return new Neighborhood(size, grid);
+
+	}
+
+	private static void writeCell(int cell, DataOutputStream out)
+			throws IOException {
+
+		if (cell > 0) {
+			out.writeByte(CELL_AGENT);
+			out.writeInt(cell);
+		} else {
+			out.writeByte(-cell);
+		}
+
+	}
+
+	private static int readCell(DataInputStream in) throws IOException {
+
+		int code = in.readByte();
+
+		return code == CELL_AGENT ? in.readInt() : -code;
+
+	}
+
+	private static void writeBytes(byte[] data, DataOutputStream out)
+			throws IOException {
+
+		if (data == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(data.length);
+		out.write(data);
+
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+
+		int length = in.readInt();
+
+		if (length < 0)
+			return null;
+
+		if (length > MessageCodec.MAX_FRAME_LENGTH)
+			throw new IOException("Illegal payload length: " + length);
+
+		byte[] data = new byte[length];
+
+		in.readFully(data);
+
+		return data;
+
+	}
+
+	private static void writeString(String value, DataOutputStream out)
+			throws IOException {
+
+		out.writeBoolean(value != null);
+
+		if (value != null)
+			out.writeUTF(value);
+
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+
+		if (!in.readBoolean())
+			return null;
+
+		return in.readUTF();
+
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.io.IOException;
+
+/**
+ * A server that accepts connections from clients in the same virtual machine,
+ * see {@link ProtocolSocket#ProtocolSocket(LocalServer)}.
+ */
+public interface LocalServer {
+
+	/**
+	 * Creates the server side of a local connection. The returned socket has
+	 * to be created with {@link ProtocolSocket#ProtocolSocket(ProtocolSocket)}.
+	 * 
+	 * @param client
+	 *            the client side of the connection
+	 * @return the server side of the connection
+	 * @throws IOException
+	 *             if the server does not accept connections
+	 */
+	public ProtocolSocket connect(ProtocolSocket client) throws IOException;
+
+}
@@ -34,11 +34,38 @@ public abstract class Message implements Serializable {
 		private static final long serialVersionUID = 1L;
 
 		public RegisterMessage(String team, String passphrase) {
+			this(team, passphrase, 0);
+		}
+
+		/**
+		 * @param formats
+		 *            bit mask of additional frame formats that the client
+		 *            understands, see {@link MessageCodec#FORMAT_BINARY}
+		 */
+		public RegisterMessage(String team, String passphrase, int formats) {
+			this(team, passphrase, formats, 0);
+		}
+
+		/**
+		 * @param formats
+		 *            bit mask of additional frame formats that the client
+		 *            understands, see {@link MessageCodec#FORMAT_BINARY}
+		 * @param features
+		 *            bit mask of optional protocol features that the client
+		 *            supports, see {@link MessageCodec#FEATURE_DELTA_STATES}
+		 */
+		public RegisterMessage(String team, String passphrase, int formats, int features) {
 			this.team = team;
 			this.passphrase = passphrase;
+			this.formats = formats;
+			this.features = features;
 		}
 
 		private String team, passphrase;
+		
+		private int formats;
+		
+		private int features;
 
 		public String getTeam() {
 			return team;
@@ -55,6 +82,30 @@ public abstract class Message implements Serializable {
 		public void setPassphrase(String passphrase) {
 			this.passphrase = passphrase;
 		}
+
+		public int getFormats() {
+			return formats;
+		}
+
+		public void setFormats(int formats) {
+			this.formats = formats;
+		}
+		
+		public boolean supportsFormat(byte format) {
+			return (formats & (1 << format)) != 0;
+		}
+
+		public int getFeatures() {
+			return features;
+		}
+
+		public void setFeatures(int features) {
+			this.features = features;
+		}
+		
+		public boolean supportsFeature(int feature) {
+			return (features & feature) != 0;
+		}
 		
 	}
 	
@@ -62,6 +113,57 @@ public abstract class Message implements Serializable {
 
 		private static final long serialVersionUID = 1L;
 		
+		private byte format = MessageCodec.FORMAT_SERIALIZED;
+		
+		public AcknowledgeMessage() {
+			super();
+		}
+		
+		/**
+		 * @param format
+		 *            the frame format that the server will use for the rest
+		 *            of the session
+		 */
+		public AcknowledgeMessage(byte format) {
+			this(format, 0);
+		}
+		
+		/**
+		 * @param format
+		 *            the frame format that the server will use for the rest
+		 *            of the session
+		 * @param features
+		 *            the optional protocol features that the server enabled
+		 *            for the session
+		 */
+		public AcknowledgeMessage(byte format, int features) {
+			super();
+			this.format = format;
+			this.features = features;
+		}
+
+		private int features = 0;
+
+		public byte getFormat() {
+			return format;
+		}
+
+		public void setFormat(byte format) {
+			this.format = format;
+		}
+
+		public int getFeatures() {
+			return features;
+		}
+
+		public void setFeatures(int features) {
+			this.features = features;
+		}
+		
+		public boolean hasFeature(int feature) {
+			return (features & feature) != 0;
+		}
+		
 	}
 	
 	
@@ -119,12 +221,32 @@ public abstract class Message implements Serializable {
 		private static final long serialVersionUID = 1L;
 		
 		public ScanMessage(int stamp) {
+			this(stamp, false);
+		}
+		
+		/**
+		 * @param keyframe
+		 *            requests a complete neighborhood even if delta states are
+		 *            enabled
+		 */
+		public ScanMessage(int stamp, boolean keyframe) {
 			super();
 			this.stamp = stamp;
+			this.keyframe = keyframe;
 		}
 		
 		private int stamp;
 		
+		private boolean keyframe;
+		
+		public boolean isKeyframe() {
+			return keyframe;
+		}
+
+		public void setKeyframe(boolean keyframe) {
+			this.keyframe = keyframe;
+		}
+		
 		public int getStamp() {
 			return stamp;
 		}
@@ -173,6 +295,151 @@ public abstract class Message implements Serializable {
 
 	}
 	
+	/**
+	 * Asks the server to send the state of the agent without a scan request
+	 * every given number of steps and whenever the agent moves to another
+	 * cell. The states are sent at the end of a game step, their stamp is the
+	 * number of the step.
+	 */
+	public static class SubscribeMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+
+		private int period;
+
+		/**
+		 * @param period
+		 *            the number of steps between two states, zero cancels the
+		 *            subscription
+		 */
+		public SubscribeMessage(int period) {
+			super();
+			this.period = period;
+		}
+
+		public int getPeriod() {
+			return period;
+		}
+
+		public void setPeriod(int period) {
+			this.period = period;
+		}
+
+	}
+	
+	/**
+	 * Carries a message of one of the logical connections that share a single
+	 * connection. A slot message without a message closes the logical
+	 * connection.
+	 */
+	public static class SlotMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+
+		private int slot;
+
+		private Message message;
+
+		public SlotMessage(int slot, Message message) {
+			super();
+			this.slot = slot;
+			this.message = message;
+		}
+
+		public int getSlot() {
+			return slot;
+		}
+
+		public Message getMessage() {
+			return message;
+		}
+
+	}
+	
+	/**
+	 * The neighborhood of the agent described by the difference to the
+	 * previous state sent to the same client. The previous neighborhood is
+	 * shifted by the movement of the agent, then the listed cells are
+	 * replaced. Only sent if the client enabled
+	 * {@link MessageCodec#FEATURE_DELTA_STATES}, the client turns it back into
+	 * a {@link StateMessage}.
+	 */
+	public static class StateDeltaMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+
+		private int stamp;
+
+		private Direction direction;
+
+		private int size;
+
+		private int shiftX, shiftY;
+
+		private int[] changes;
+
+		private int checksum;
+
+		/**
+		 * @param size
+		 *            the size of the neighborhood
+		 * @param shiftX
+		 *            the horizontal movement of the agent since the previous
+		 *            state
+		 * @param shiftY
+		 *            the vertical movement of the agent since the previous
+		 *            state
+		 * @param changes
+		 *            pairs of cell index and new cell value
+		 * @param checksum
+		 *            the checksum of the resulting neighborhood, see
+		 *            {@link Neighborhood#checksum()}
+		 */
+		public StateDeltaMessage(Direction direction, int size, int shiftX,
+				int shiftY, int[] changes, int checksum) {
+			super();
+			this.direction = direction;
+			this.size = size;
+			this.shiftX = shiftX;
+			this.shiftY = shiftY;
+			this.changes = changes;
+			this.checksum = checksum;
+		}
+
+		public int getStamp() {
+			return stamp;
+		}
+
+		public void setStamp(int stamp) {
+			this.stamp = stamp;
+		}
+
+		public Direction getDirection() {
+			return direction;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getShiftX() {
+			return shiftX;
+		}
+
+		public int getShiftY() {
+			return shiftY;
+		}
+
+		public int[] getChanges() {
+			return changes;
+		}
+
+		public int getChecksum() {
+			return checksum;
+		}
+
+	}
+	
 	public static class MoveMessage extends Message {
 
 		private Direction direction;
@@ -226,6 +493,48 @@ public abstract class Message implements Serializable {
 		
 	}
 	
+	/**
+	 * Sends the same message to several agents of the team at once. The
+	 * message is transferred only once, the server delivers it to every
+	 * recipient that is close enough.
+	 */
+	public static class MulticastMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+	
+		private int[] to;
+		
+		private byte[] message;
+
+		/**
+		 * @param to
+		 *            the ids of the recipients or <tt>null</tt> for all
+		 *            agents of the team
+		 */
+		public MulticastMessage(int[] to, byte[] message) {
+			super();
+			this.to = to;
+			this.message = message;
+		}
+
+		public int[] getTo() {
+			return to;
+		}
+
+		public void setTo(int[] to) {
+			this.to = to;
+		}
+
+		public byte[] getMessage() {
+			return message;
+		}
+
+		public void setMessage(byte[] message) {
+			this.message = message;
+		}
+		
+	}
+	
 	public static class ReceiveMessage extends Message {
 
 		private static final long serialVersionUID = 1L;
@@ -0,0 +1,336 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * Converts messages to the payload of a single protocol frame and back. On
+ * the wire every frame is prefixed by its length as a four byte big-endian
+ * integer, so a frame can be cut out of the stream without decoding it, which
+ * is what the non-blocking transport needs. The first byte of the payload is
+ * the format of the frame, the rest is the message.
+ *
+ * By default the message is written using Java serialization. All the
+ * serialized frames of a connection are parts of one object stream, the
+ * stream header is only in the first of them. The stream is reset before
+ * every message, so the receiver never gets a reference to an object that
+ * the sender may have changed since, but the class descriptors are kept and
+ * every class is described only once per connection. Frames therefore have to
+ * be decoded in the order in which they were encoded, and every codec serves
+ * a single connection. The compact binary format is used only when both sides
+ * agree on it during registration. Since every frame carries its format,
+ * frames of both formats can be decoded at any time.
+ */
+public class MessageCodec {
+
+	public static final byte FORMAT_SERIALIZED = 0;
+
+	public static final byte FORMAT_BINARY = 1;
+
+	/**
+	 * Feature bit for states that only contain the cells that changed since
+	 * the previous state, see {@link Message.StateDeltaMessage}.
+	 */
+	public static final int FEATURE_DELTA_STATES = 1;
+
+	/**
+	 * The maximum accepted frame length. Longer frames are considered a
+	 * protocol error.
+	 */
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	/**
+	 * The number of class descriptors that are remembered per connection,
+	 * the descriptors of further classes are sent with every message.
+	 */
+	private static final int MAX_DESCRIPTORS = Short.MAX_VALUE;
+
+	/**
+	 * Object stream that writes every class descriptor only the first time
+	 * and later refers to it by its number. The numbers survive
+	 * {@link #reset()}, unlike the handles of the objects.
+	 */
+	private static class DescriptorOutputStream extends ObjectOutputStream {
+
+		private Hashtable<ObjectStreamClass, Integer> descriptors = new Hashtable<ObjectStreamClass, Integer>();
+
+		public DescriptorOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc)
+				throws IOException {
+
+			Integer index = descriptors.get(desc);
+
+			if (index != null) {
+				writeShort(index);
+				return;
+			}
+
+			if (descriptors.size() < MAX_DESCRIPTORS)
+				descriptors.put(desc, descriptors.size());
+
+			writeShort(-1);
+
+			super.writeClassDescriptor(desc);
+
+		}
+
+	}
+
+	/**
+	 * Reads the streams of {@link DescriptorOutputStream}.
+	 */
+	private static class DescriptorInputStream extends ObjectInputStream {
+
+		private Vector<ObjectStreamClass> descriptors = new Vector<ObjectStreamClass>();
+
+		public DescriptorInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException,
+				ClassNotFoundException {
+
+			int index = readShort();
+
+			if (index >= 0) {
+
+				if (index >= descriptors.size())
+					throw new InvalidClassException("Unknown class descriptor: " + index);
+
+				return descriptors.get(index);
+
+			}
+
+			ObjectStreamClass desc = super.readClassDescriptor();
+
+			if (descriptors.size() < MAX_DESCRIPTORS)
+				descriptors.add(desc);
+
+			return desc;
+
+		}
+
+	}
+
+	/**
+	 * Passes the payload of one frame at a time to the object stream.
+	 */
+	private static class FrameInputStream extends InputStream {
+
+		private byte[] data;
+
+		private int position, end;
+
+		public void setFrame(byte[] data, int offset, int length) {
+			this.data = data;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public int read() {
+
+			if (position >= end)
+				return -1;
+
+			return data[position++] & 0xff;
+
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) {
+
+			if (length == 0)
+				return 0;
+
+			if (position >= end)
+				return -1;
+
+			length = Math.min(length, end - position);
+
+			System.arraycopy(data, position, b, offset, length);
+
+			position += length;
+
+			return length;
+
+		}
+
+		@Override
+		public int available() {
+			return end - position;
+		}
+
+	}
+
+	private volatile byte format = FORMAT_SERIALIZED;
+
+	private ByteArrayOutputStream serializedFrame = new ByteArrayOutputStream(256);
+
+	private ObjectOutputStream objectOut = null;
+
+	private boolean broken = false;
+
+	private FrameInputStream frameIn = new FrameInputStream();
+
+	private ObjectInputStream objectIn = null;
+
+	public byte getFormat() {
+		return format;
+	}
+
+	/**
+	 * Sets the format used for encoding. Decoding is not affected.
+	 */
+	public void setFormat(byte format) {
+		this.format = format;
+	}
+
+	public byte[] encode(Message message) throws IOException {
+
+		byte format = this.format;
+
+		if (format == FORMAT_BINARY) {
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+			buffer.write(format);
+
+			DataOutputStream out = new DataOutputStream(buffer);
+
+			BinaryFormat.write(message, out);
+
+			out.close();
+
+			return buffer.toByteArray();
+
+		}
+
+		synchronized (serializedFrame) {
+
+			// the receiver can not follow a stream that was cut in the middle
+			// of a message
+			if (broken)
+				throw new IOException("Object stream is broken");
+
+			serializedFrame.reset();
+
+			serializedFrame.write(FORMAT_SERIALIZED);
+
+			// the stream header goes into the first frame
+			if (objectOut == null)
+				objectOut = new DescriptorOutputStream(serializedFrame);
+
+			boolean done = false;
+
+			try {
+
+				objectOut.reset();
+
+				objectOut.writeObject(message);
+
+				objectOut.flush();
+
+				done = true;
+
+			} finally {
+				broken = !done;
+			}
+
+			return serializedFrame.toByteArray();
+
+		}
+
+	}
+
+	/**
+	 * Decodes a single frame. The frames of a connection have to be decoded
+	 * in the order in which they were encoded.
+	 * 
+	 * @return the decoded message or <tt>null</tt> if the frame does not
+	 *         contain a known message
+	 * @throws IOException
+	 *             if the frame is corrupted
+	 */
+	public Message decode(byte[] data, int offset, int length)
+			throws IOException {
+
+		if (length < 1)
+			throw new IOException("Empty frame");
+
+		switch (data[offset]) {
+		case FORMAT_SERIALIZED:
+			break;
+		case FORMAT_BINARY: {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					data, offset + 1, length - 1));
+			try {
+				return BinaryFormat.read(in);
+			} finally {
+				in.close();
+			}
+		}
+		default:
+			return null;
+		}
+
+		synchronized (frameIn) {
+
+			frameIn.setFrame(data, offset + 1, length - 1);
+
+			try {
+
+				if (objectIn == null)
+					objectIn = new DescriptorInputStream(frameIn);
+
+				Object obj = objectIn.readObject();
+
+				if (obj == null || !(obj instanceof Message))
+					return null;
+
+				return (Message) obj;
+
+			} catch (ClassNotFoundException e) {
+				return null;
+			} finally {
+				frameIn.setFrame(null, 0, 0);
+			}
+
+		}
+
+	}
+
+}
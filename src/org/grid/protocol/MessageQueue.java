@@ -0,0 +1,312 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Every slot
+ * of the ring carries a sequence number that tells whether the slot is free
+ * for the producer with a given position or filled for the consumer, so
+ * producers only compete for the tail position with a single compare and set
+ * and the consumer does not compete with anyone. The queue carries protocol
+ * messages of a connection, but any kind of object can be queued.
+ *
+ * A consumer that waits for a message and producers that wait for a free slot
+ * are parked and unparked by the other side. Threads are only woken if
+ * somebody is actually waiting, so neither side touches a monitor when the
+ * queue is neither empty nor full.
+ *
+ * Only one thread may consume messages at the same time.
+ */
+public class MessageQueue<M> {
+
+	/**
+	 * How long a blocked producer sleeps at most before checking the queue
+	 * again. Producers are normally woken by the consumer, this is only a
+	 * safety net for a wake-up that went to a producer that was already done.
+	 */
+	private static final long PRODUCER_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private AtomicReferenceArray<M> buffer;
+
+	private AtomicLongArray sequence;
+
+	private int mask;
+
+	private AtomicLong tail = new AtomicLong(0);
+
+	private volatile long head = 0;
+
+	private volatile Thread consumer = null;
+
+	private volatile boolean consumerWaiting = false;
+
+	private ConcurrentLinkedQueue<Thread> producers = new ConcurrentLinkedQueue<Thread>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of messages, rounded up to a power of two
+	 */
+	public MessageQueue(int capacity) {
+
+		int size = 2;
+
+		while (size < capacity)
+			size <<= 1;
+
+		buffer = new AtomicReferenceArray<M>(size);
+		sequence = new AtomicLongArray(size);
+		mask = size - 1;
+
+		for (int i = 0; i < size; i++)
+			sequence.set(i, i);
+
+	}
+
+	/**
+	 * Adds a message if there is space for it.
+	 *
+	 * @return false if the queue is full or closed
+	 */
+	public boolean offer(M message) {
+
+		if (closed)
+			return false;
+
+		long position = tail.get();
+
+		while (true) {
+
+			int index = (int) position & mask;
+
+			long difference = sequence.get(index) - position;
+
+			if (difference == 0) {
+
+				if (tail.compareAndSet(position, position + 1)) {
+
+					buffer.set(index, message);
+
+					sequence.set(index, position + 1);
+
+					break;
+
+				}
+
+				position = tail.get();
+
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+
+		}
+
+		if (consumerWaiting)
+			LockSupport.unpark(consumer);
+
+		return true;
+
+	}
+
+	/**
+	 * Adds a message, waits while the queue is full.
+	 *
+	 * @return false if the queue was closed
+	 */
+	public boolean put(M message) {
+
+		Thread thread = null;
+
+		while (!offer(message)) {
+
+			if (closed)
+				return false;
+
+			if (thread == null)
+				thread = Thread.currentThread();
+
+			producers.add(thread);
+
+			// the consumer might have made space before we were registered
+			if (offer(message)) {
+				producers.remove(thread);
+				return true;
+			}
+
+			LockSupport.parkNanos(this, PRODUCER_PARK);
+
+			producers.remove(thread);
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Removes the first message. May only be called by the consumer.
+	 *
+	 * @return the message or <tt>null</tt> if the queue is empty
+	 */
+	public M poll() {
+
+		long position = head;
+
+		int index = (int) position & mask;
+
+		if (sequence.get(index) != position + 1)
+			return null;
+
+		M message = buffer.get(index);
+
+		buffer.set(index, null);
+
+		sequence.set(index, position + mask + 1);
+
+		head = position + 1;
+
+		if (!producers.isEmpty()) {
+
+			Thread producer = producers.poll();
+
+			if (producer != null)
+				LockSupport.unpark(producer);
+
+		}
+
+		return message;
+
+	}
+
+	/**
+	 * Removes the first message, waits while the queue is empty. May only be
+	 * called by the consumer.
+	 *
+	 * @return the message or <tt>null</tt> if the queue was closed
+	 */
+	public M take() {
+		return take(-1, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Removes the first message, waits at most the given time while the queue
+	 * is empty. May only be called by the consumer.
+	 *
+	 * @param timeout
+	 *            the longest time to wait, a negative value waits until a
+	 *            message arrives
+	 * @return the message or <tt>null</tt> if the queue was closed or no
+	 *         message arrived in time
+	 */
+	public M take(long timeout, TimeUnit unit) {
+
+		M message = poll();
+
+		if (message != null)
+			return message;
+
+		consumer = Thread.currentThread();
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		try {
+
+			while (true) {
+
+				consumerWaiting = true;
+
+				// a producer that added a message before the flag was set
+				// did not wake us
+				message = poll();
+
+				if (message != null || closed)
+					return message;
+
+				if (timeout < 0) {
+					LockSupport.park(this);
+					continue;
+				}
+
+				long remaining = deadline - System.nanoTime();
+
+				if (remaining <= 0)
+					return null;
+
+				LockSupport.parkNanos(this, remaining);
+
+			}
+
+		} finally {
+			consumerWaiting = false;
+		}
+
+	}
+
+	/**
+	 * Returns the approximate number of messages in the queue.
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Closes the queue. No more messages are accepted and all waiting threads
+	 * are woken up. Messages that are already in the queue can still be
+	 * removed.
+	 */
+	public void close() {
+
+		closed = true;
+
+		Thread waiting = consumer;
+
+		if (waiting != null)
+			LockSupport.unpark(waiting);
+
+		while (true) {
+
+			Thread producer = producers.poll();
+
+			if (producer == null)
+				break;
+
+			LockSupport.unpark(producer);
+
+		}
+
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+}
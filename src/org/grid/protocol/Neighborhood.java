@@ -19,6 +19,7 @@ package org.grid.protocol;
 
 import java.awt.Color;
 import java.io.Serializable;
+import java.util.Arrays;
 
 import org.grid.arena.Arena;
 
@@ -53,10 +54,22 @@ public class Neighborhood implements Serializable, Arena {
 		
 	}
 
+	Neighborhood(int size, int[] grid) {
+		
+		this.size = size;
+		
+		this.grid = grid;
+		
+	}
+	
 	public int getSize() {
 		return size;
 	}
 	
+	int[] getGrid() {
+		return grid;
+	}
+	
 	public int getCell(int x, int y) {
 	
 		if (x > size || x < -size || y > size || y < -size)
@@ -82,6 +95,103 @@ public class Neighborhood implements Serializable, Arena {
 		
 	}
 
+	/**
+	 * Returns a checksum of all cells, used to verify neighborhoods that were
+	 * reconstructed from a delta.
+	 */
+	public int checksum() {
+		return Arrays.hashCode(grid);
+	}
+	
+	/**
+	 * Lists the cells that differ from a previous neighborhood of the same
+	 * size once it is shifted by the movement of its center.
+	 * 
+	 * @param previous
+	 *            the previous neighborhood
+	 * @param shiftX
+	 *            the horizontal movement of the center since the previous
+	 *            neighborhood
+	 * @param shiftY
+	 *            the vertical movement of the center since the previous
+	 *            neighborhood
+	 * @return pairs of cell index and cell value or <tt>null</tt> if the
+	 *         difference is not smaller than the neighborhood itself
+	 */
+	public int[] difference(Neighborhood previous, int shiftX, int shiftY) {
+		
+		if (previous == null || previous.size != size)
+			return null;
+		
+		int width = 2 * size + 1;
+		
+		int[] changes = new int[grid.length];
+		
+		int count = 0;
+		
+		for (int j = -size; j <= size; j++) {
+			for (int i = -size; i <= size; i++) {
+				
+				int index = (i + size) + (j + size) * width;
+				
+				int x = i + shiftX, y = j + shiftY;
+				
+				if (x >= -size && x <= size && y >= -size && y <= size
+						&& previous.grid[(x + size) + (y + size) * width] == grid[index])
+					continue;
+				
+				// every change takes two values
+				if (count + 2 > changes.length)
+					return null;
+				
+				changes[count++] = index;
+				changes[count++] = grid[index];
+				
+			}
+		}
+		
+		return Arrays.copyOf(changes, count);
+		
+	}
+	
+	/**
+	 * Creates the neighborhood that follows this one, the inverse of
+	 * {@link #difference(Neighborhood, int, int)}. This neighborhood is not
+	 * changed.
+	 * 
+	 * @return the new neighborhood or <tt>null</tt> if the changes are not
+	 *         valid for this neighborhood
+	 */
+	public Neighborhood apply(int shiftX, int shiftY, int[] changes) {
+		
+		int width = 2 * size + 1;
+		
+		int[] next = new int[grid.length];
+		
+		for (int j = -size; j <= size; j++) {
+			for (int i = -size; i <= size; i++) {
+				
+				int x = i + shiftX, y = j + shiftY;
+				
+				// cells that were not visible are listed in the changes
+				if (x >= -size && x <= size && y >= -size && y <= size)
+					next[(i + size) + (j + size) * width] = grid[(x + size) + (y + size) * width];
+				
+			}
+		}
+		
+		for (int i = 0; i + 1 < changes.length; i += 2) {
+			
+			if (changes[i] < 0 || changes[i] >= next.length)
+				return null;
+			
+			next[changes[i]] = changes[i + 1];
+		}
+		
+		return new Neighborhood(size, next);
+		
+	}
+
 	@Override
 	public int getBaseTile(int x, int y) {
 		return 0;
@@ -0,0 +1,132 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.grid.protocol.ProtocolSocket.ChannelTransport;
+
+/**
+ * A single I/O thread that serves any number of non-blocking protocol sockets.
+ * The selector thread only reads, decodes and writes frames and never waits.
+ * Incoming messages are passed to {@link ProtocolSocket#handleMessage(Message)}
+ * by a thread of each socket.
+ *
+ * @see ProtocolSocket#ProtocolSocket(java.nio.channels.SocketChannel,
+ *      ProtocolSelector)
+ */
+public class ProtocolSelector implements Runnable {
+
+	private Selector selector;
+
+	private ConcurrentLinkedQueue<ChannelTransport> pending = new ConcurrentLinkedQueue<ChannelTransport>();
+
+	public ProtocolSelector() throws IOException {
+
+		selector = Selector.open();
+
+	}
+
+	/**
+	 * Schedules registration or an interest update of a channel. Channels can
+	 * only be safely registered and updated by the selector thread.
+	 */
+	void schedule(ChannelTransport transport) {
+
+		pending.add(transport);
+
+		selector.wakeup();
+
+	}
+
+	@Override
+	public void run() {
+
+		try {
+
+			while (selector.isOpen()) {
+
+				selector.select();
+
+				while (true) {
+
+					ChannelTransport transport = pending.poll();
+
+					if (transport == null)
+						break;
+
+					try {
+						transport.update(selector);
+					} catch (CancelledKeyException e) {
+					}
+
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+
+					SelectionKey key = keys.next();
+
+					keys.remove();
+
+					ChannelTransport transport = (ChannelTransport) key.attachment();
+
+					try {
+
+						if (key.isValid() && key.isReadable())
+							transport.read();
+
+						if (key.isValid() && key.isWritable())
+							transport.write();
+
+					} catch (CancelledKeyException e) {
+						// closed by another thread in the meantime
+					}
+
+				}
+
+			}
+
+		} catch (ClosedSelectorException e) {
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+	}
+
+	/**
+	 * Stops the selector thread. Channels that are still registered are not
+	 * closed.
+	 */
+	public void close() {
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+
+	}
+
+}
@@ -17,13 +17,24 @@
  */
 package org.grid.protocol;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ProtocolSocket {
 
@@ -42,190 +53,988 @@ public class ProtocolSocket {
 
 		}
 
-	
-	private ObjectInputStream in;
-	
-	private ObjectOutputStream out;
-	
-	private Thread inputThread;
-	
-	private Thread outputThread;
-	
-	private boolean running = true;
-	
-	private boolean debug = Boolean.getBoolean("fri.pipt.protocol.debug");
-	
-	private ConcurrentLinkedQueue<Message> inQueue = new ConcurrentLinkedQueue<Message>();
-	
-	private ConcurrentLinkedQueue<Message> outQueue = new ConcurrentLinkedQueue<Message>();
-	
-	private Socket socket;
-	
-	public ProtocolSocket(Socket sck) throws IOException {
+	/**
+	 * Moves frames between the message queues and the connection.
+	 */
+	abstract class Transport {
 
-		this.socket = sck;
+		abstract void start();
 
-		inputThread = new Thread(new Runnable() {
+		abstract void messageQueued();
 
-			@Override
-			public void run() {
-				
-				try {
-					in = new ObjectInputStream(socket.getInputStream());
-				} catch (IOException e1) {
-					return;
+		abstract void close();
+
+		abstract InetAddress getRemoteAddress();
+
+		abstract int getRemotePort();
+
+	}
+
+	/**
+	 * Blocking transport that uses one thread for reading and one thread for
+	 * writing.
+	 */
+	private class StreamTransport extends Transport {
+
+		private Socket socket;
+
+		private Thread inputThread;
+
+		private Thread outputThread;
+
+		public StreamTransport(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		void start() {
+
+			inputThread = Threads.newThread("Protocol input " + socket.getPort(), false, new Runnable() {
+
+				@Override
+				public void run() {
+
+					DataInputStream in;
+
+					try {
+						in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+					} catch (IOException e1) {
+						return;
+					}
+
+					while (running) {
+
+						try {
+
+							int length = in.readInt();
+
+							if (length < 0 || length > MessageCodec.MAX_FRAME_LENGTH)
+								throw new IOException("Illegal frame length: " + length);
+
+							byte[] frame = new byte[length];
+
+							in.readFully(frame);
+
+							Message message = codec.decode(frame, 0, length);
+
+							if (message == null)
+								continue;
+
+							if (debug)
+								System.err.println("*** PROTOCOL INCOMING <<< " + message.getClass().getSimpleName() + " <<<");
+
+							receive(message);
+
+						} catch (IOException e) {
+							if (debug)
+								e.printStackTrace();
+							ProtocolSocket.this.close();
+						}
+
+					}
 				}
-				
-				while (running) {
+
+			});
+			inputThread.start();
+
+			outputThread = Threads.newThread("Protocol output " + socket.getPort(), false, new Runnable() {
+
+				@Override
+				public void run() {
+
+					DataOutputStream out;
 
 					try {
+						// the buffer is flushed by itself when it is full
+						out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FLUSH_THRESHOLD));
+					} catch (IOException e1) {
+						return;
+					}
+
+					while (running) {
+
+						try {
+							Message message = outQueue.take();
+
+							boolean flush = !deferredFlush;
+
+							// write everything that is queued, then flush once
+							while (message != null) {
+
+								if (message == FLUSH)
+									flush = true;
+								else
+									writeFrame(message, out);
+
+								message = outQueue.poll();
+
+							}
+
+							if (flush)
+								out.flush();
+
+						} catch (IOException e) {
+							if (debug)
+								e.printStackTrace();
+							ProtocolSocket.this.close();
+						}
+
+					}
+				}
+
+			});
+			outputThread.start();
+
+		}
+
+		@Override
+		void messageQueued() {
+
+		}
+
+		@Override
+		void close() {
+
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+
+		}
+
+		@Override
+		InetAddress getRemoteAddress() {
+			return socket.getInetAddress();
+		}
+
+		@Override
+		int getRemotePort() {
+			return socket.getPort();
+		}
+
+	}
+
+	/**
+	 * Non-blocking transport that is served by a {@link ProtocolSelector}
+	 * together with many other connections. The selector thread only reads,
+	 * decodes and writes frames. Incoming messages are handled by a thread of
+	 * the connection, so a handler that waits for the game or for space in a
+	 * queue does not hold up the other connections of the selector. If that
+	 * thread falls behind, the connection is not read until it catches up.
+	 */
+	class ChannelTransport extends Transport {
+
+		private static final int BUFFER_SIZE = 4096;
+
+		private SocketChannel channel;
+
+		private ProtocolSelector selector;
+
+		private SelectionKey key = null;
+
+		private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+		private ByteBuffer output = null;
+
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream(BUFFER_SIZE);
+
+		private DataOutputStream pendingOut = new DataOutputStream(pending);
+
+		private AtomicBoolean writeRequested = new AtomicBoolean(false);
+
+		private MessageQueue<Message> received = new MessageQueue<Message>(QUEUE_CAPACITY);
+
+		private Thread handler;
+
+		/**
+		 * A decoded message that did not fit into the queue of the handler
+		 * thread. Only used by the selector thread.
+		 */
+		private Message stalled = null;
+
+		private volatile boolean suspended = false;
+
+		private AtomicBoolean resumeRequested = new AtomicBoolean(false);
+
+		public ChannelTransport(SocketChannel channel, ProtocolSelector selector) throws IOException {
+			this.channel = channel;
+			this.selector = selector;
+
+			channel.configureBlocking(false);
+		}
+
+		@Override
+		void start() {
+
+			handler = Threads.newThread("Protocol handler " + getRemotePort(), false, new Runnable() {
+
+				@Override
+				public void run() {
+
+					while (running) {
+
+						Message message = received.take();
+
+						if (message == null)
+							break;
+
+						receive(message);
+
+						// there is space in the queue again
+						if (suspended && resumeRequested.compareAndSet(false, true))
+							selector.schedule(ChannelTransport.this);
 
-						Object obj = in.readObject();
-
-						if (obj == null || !(obj instanceof Message))
-							continue;
-						
-						Message message = (Message) obj;
-						
-						if (debug)
-							System.err.println("*** PROTOCOL INCOMING <<< " + message.getClass().getSimpleName() + " <<<");
-						
-						handleMessage(message);
-						
-					} catch (ClassNotFoundException e) {
-						if (debug)
-							e.printStackTrace();
-					} catch (IOException e) {
-						if (debug)
-							e.printStackTrace();
-						close();
 					}
 
 				}
+
+			});
+			handler.start();
+
+			selector.schedule(this);
+		}
+
+		@Override
+		void messageQueued() {
+
+			if (writeRequested.compareAndSet(false, true))
+				selector.schedule(this);
+
+		}
+
+		/**
+		 * Registers the channel or updates its interest set. Called by the
+		 * selector thread only.
+		 */
+		void update(Selector selector) {
+
+			if (!running)
+				return;
+
+			try {
+
+				if (key == null)
+					key = channel.register(selector, SelectionKey.OP_READ, this);
+
+				if (writeRequested.getAndSet(false) && key.isValid())
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+
+				if (resumeRequested.getAndSet(false))
+					resume();
+
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				ProtocolSocket.this.close();
 			}
-			
-		});
-		inputThread.start();
-		
-		outputThread = new Thread(new Runnable() {
 
-			@Override
-			public void run() {
-				
+		}
 
-				try {
-					out = new ObjectOutputStream(socket.getOutputStream());
-				} catch (IOException e1) {
+		/**
+		 * Reads all available data and passes complete frames to the handler
+		 * thread. Called by the selector thread only.
+		 */
+		void read() {
+
+			try {
+
+				if (channel.read(input) < 0) {
+					ProtocolSocket.this.close();
 					return;
 				}
 
-				
+				frames();
+
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				ProtocolSocket.this.close();
+			}
+
+		}
+
+		/**
+		 * Decodes the complete frames in the input buffer. Stops early if the
+		 * handler thread can not take any more messages.
+		 */
+		private void frames() throws IOException {
+
+			input.flip();
+
+			int required = 0;
+
+			while (running && input.remaining() >= 4) {
+
+				int length = input.getInt(input.position());
+
+				if (length < 0 || length > MessageCodec.MAX_FRAME_LENGTH)
+					throw new IOException("Illegal frame length: " + length);
+
+				if (input.remaining() < length + 4) {
+					required = length + 4;
+					break;
+				}
+
+				input.getInt();
+
+				Message message = codec.decode(input.array(), input.arrayOffset() + input.position(), length);
+
+				input.position(input.position() + length);
+
+				if (message == null)
+					continue;
+
+				if (debug)
+					System.err.println("*** PROTOCOL INCOMING <<< " + message.getClass().getSimpleName() + " <<<");
+
+				if (!deliver(message))
+					break;
+
+			}
+
+			input.compact();
+
+			if (required > input.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(required);
+				input.flip();
+				larger.put(input);
+				input = larger;
+			}
+
+		}
+
+		/**
+		 * Passes a message to the handler thread without waiting. If its
+		 * queue is full the message is kept and the channel is not read until
+		 * the handler thread asks for more.
+		 * 
+		 * @return false if the message was kept
+		 */
+		private boolean deliver(Message message) {
+
+			if (received.offer(message))
+				return true;
+
+			stalled = message;
+
+			suspended = true;
+
+			// the handler thread may have emptied the queue before it could
+			// see that the channel is suspended
+			if (received.offer(message)) {
+				stalled = null;
+				suspended = false;
+				return true;
+			}
+
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+			return false;
+
+		}
+
+		/**
+		 * Passes the kept message and the frames that are still buffered to
+		 * the handler thread and reads the channel again if they all fit.
+		 */
+		private void resume() throws IOException {
+
+			if (stalled == null)
+				return;
+
+			Message message = stalled;
+
+			stalled = null;
+
+			suspended = false;
+
+			if (!deliver(message))
+				return;
+
+			frames();
+
+			if (stalled == null && key.isValid())
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+		}
+
+		/**
+		 * Writes queued messages until the queue is empty or the socket buffer
+		 * is full. Called by the selector thread only.
+		 */
+		void write() {
+
+			try {
+
 				while (running) {
 
-					try {
-						synchronized (outQueue) {
-							while (outQueue.isEmpty()) {
-								try {
-									outQueue.wait();
-								} catch (InterruptedException e) {}
-							}
+					if (output == null || !output.hasRemaining()) {
+
+						output = drain();
+
+						if (output == null) {
+							key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+							return;
 						}
+					}
+
+					channel.write(output);
+
+					if (output.hasRemaining())
+						return;
+
+				}
+
+			} catch (IOException e) {
+				if (debug)
+					e.printStackTrace();
+				ProtocolSocket.this.close();
+			}
+
+		}
+
+		/**
+		 * Encodes queued messages. The frames are collected until a flush is
+		 * requested (immediately if flushing is not deferred) or the threshold
+		 * is reached.
+		 * 
+		 * @return the frames that should be written or <tt>null</tt>
+		 */
+		private ByteBuffer drain() throws IOException {
+
+			boolean flush = !deferredFlush;
+
+			while (true) {
+
+				Message message = outQueue.poll();
+
+				if (message == null)
+					break;
+
+				if (message == FLUSH) {
+					flush = true;
+					continue;
+				}
+
+				writeFrame(message, pendingOut);
+
+				if (pending.size() >= FLUSH_THRESHOLD) {
+					flush = true;
+					break;
+				}
+			}
+
+			if (!flush || pending.size() == 0)
+				return null;
+
+			ByteBuffer frames = ByteBuffer.wrap(pending.toByteArray());
+
+			pending.reset();
+
+			return frames;
+
+		}
+
+		@Override
+		void close() {
+
+			received.close();
+
+			if (key != null)
+				key.cancel();
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+
+		}
+
+		@Override
+		InetAddress getRemoteAddress() {
+			return channel.socket().getInetAddress();
+		}
+
+		@Override
+		int getRemotePort() {
+			return channel.socket().getPort();
+		}
+
+	}
+	
+	/**
+	 * Transport that passes messages to another socket in the same virtual
+	 * machine without encoding them. Every side of a connection has its own
+	 * thread that hands the messages over in order, so a side that waits in
+	 * {@link #handleMessage(Message)} (for a game step or for space in a
+	 * queue) only holds up its own connection.
+	 */
+	private class LocalTransport extends Transport implements Runnable {
+
+		private ProtocolSocket peer;
+
+		private Thread thread;
+
+		@Override
+		void start() {
+
+			thread = Threads.newThread("Local transport", true, this);
+			thread.start();
+
+		}
+
+		@Override
+		void messageQueued() {
+
+		}
+
+		@Override
+		public void run() {
+
+			while (running) {
+
+				Message message = outQueue.take();
+
+				if (message == null)
+					break;
+
+				if (message == FLUSH)
+					continue;
+
+				if (debug)
+					System.err.println("*** PROTOCOL LOCAL >>> " + message.getClass().getSimpleName() + " >>>");
+
+				if (!peer.isClosed())
+					peer.receive(copy(message));
+
+			}
+
+		}
+
+		@Override
+		void close() {
+			peer.close();
+		}
+
+		@Override
+		InetAddress getRemoteAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		int getRemotePort() {
+			return 0;
+		}
+
+	}
+
+	/**
+	 * Transport of a logical connection that shares a connection, the
+	 * session, with other logical connections. Every message is wrapped into a
+	 * {@link Message.SlotMessage} with the slot of the connection and sent by
+	 * the session, so the logical connection needs no threads of its own.
+	 */
+	private class SlotTransport extends Transport {
+
+		private ProtocolSocket session;
+
+		private int slot;
+
+		private AtomicBoolean draining = new AtomicBoolean(false);
+
+		public SlotTransport(ProtocolSocket session, int slot) {
+			this.session = session;
+			this.slot = slot;
+		}
+
+		@Override
+		void start() {
+
+		}
+
+		@Override
+		void messageQueued() {
+
+			// only one thread may take messages from the queue, the others
+			// leave their messages to it
+			while (draining.compareAndSet(false, true)) {
+
+				try {
+
+					while (true) {
 
 						Message message = outQueue.poll();
-						
-						if (debug)
-							System.err.println("*** PROTOCOL OUTGOING >>> " + message.getClass().getSimpleName() + " >>>");
-						
-						out.writeObject(message);
-
-						out.flush();
-						
-					} catch (IOException e) {
-						if (debug)
-							e.printStackTrace();
-						close();
-					} 
 
+						if (message == null)
+							break;
+
+						if (message == FLUSH)
+							session.flush();
+						else
+							session.sendMessage(new Message.SlotMessage(slot, message));
+
+					}
+
+				} finally {
+					draining.set(false);
 				}
+
+				if (outQueue.isEmpty())
+					break;
+
 			}
-			
-		});
-		outputThread.start();
+
+		}
+
+		@Override
+		void close() {
+
+			// tell the other side unless it closed the slot itself
+			if (session.slots.remove(slot) != null && !session.isClosed())
+				session.sendMessage(new Message.SlotMessage(slot, null));
+
+		}
+
+		@Override
+		InetAddress getRemoteAddress() {
+			return session.getRemoteAddress();
+		}
+
+		@Override
+		int getRemotePort() {
+			return session.getRemotePort();
+		}
+
+	}
+
+	/**
+	 * Copies the parts of a message that the receiver may change and the
+	 * sender may still use. Only needed for local connections, everything else
+	 * is decoded into new objects anyway.
+	 */
+	private static Message copy(Message message) {
+
+		if (message instanceof Message.SendMessage) {
+			Message.SendMessage m = (Message.SendMessage) message;
+			return new Message.SendMessage(m.getTo(), m.getMessage() == null ? null : m.getMessage().clone());
+		}
+
+		if (message instanceof Message.MulticastMessage) {
+			Message.MulticastMessage m = (Message.MulticastMessage) message;
+			return new Message.MulticastMessage(m.getTo() == null ? null : m.getTo().clone(),
+					m.getMessage() == null ? null : m.getMessage().clone());
+		}
+
+		if (message instanceof Message.ReceiveMessage) {
+			Message.ReceiveMessage m = (Message.ReceiveMessage) message;
+			return new Message.ReceiveMessage(m.getFrom(), m.getMessage() == null ? null : m.getMessage().clone());
+		}
+
+		return message;
+
 	}
+
+	/**
+	 * Marks the point where queued frames should be flushed, never sent.
+	 */
+	private static final Message FLUSH = new Message() {
+		private static final long serialVersionUID = 1L;
+	};
 	
-	public Message receiveMessage() {
-		
-		synchronized (inQueue) {
+	/**
+	 * Number of buffered bytes after which frames are written even if no flush
+	 * was requested.
+	 */
+	private static final int FLUSH_THRESHOLD = 16 * 1024;
+	
+	private Transport transport;
+	
+	private MessageCodec codec = new MessageCodec();
+	
+	private volatile boolean running = true;
+	
+	private volatile boolean deferredFlush = false;
+	
+	private boolean debug = Boolean.getBoolean("fri.pipt.protocol.debug");
+	
+	/**
+	 * The capacity of the incoming and the outgoing message queue.
+	 */
+	private static final int QUEUE_CAPACITY = Integer.getInteger("org.grid.protocol.queue", 1024);
+	
+	private MessageQueue<Message> inQueue = new MessageQueue<Message>(QUEUE_CAPACITY);
+	
+	private Hashtable<Integer, ProtocolSocket> slots = new Hashtable<Integer, ProtocolSocket>();
+	
+	private MessageQueue<Message> outQueue = new MessageQueue<Message>(QUEUE_CAPACITY);
+	
+	/**
+	 * Creates a socket that is served by its own input and output thread.
+	 * 
+	 * @param sck
+	 *            connected socket
+	 */
+	public ProtocolSocket(Socket sck) throws IOException {
+
+		transport = new StreamTransport(sck);
+
+		transport.start();
+	}
+	
+	/**
+	 * Creates a socket that is served by the given selector.
+	 * 
+	 * @param channel
+	 *            connected channel, it is switched to non-blocking mode
+	 * @param selector
+	 *            the selector that will serve the channel
+	 */
+	public ProtocolSocket(SocketChannel channel, ProtocolSelector selector) throws IOException {
+
+		transport = new ChannelTransport(channel, selector);
+
+		transport.start();
+	}
+	
+	/**
+	 * Creates the client side of a connection to a server in the same virtual
+	 * machine. Messages are passed between the two sides without encoding.
+	 * 
+	 * @param server
+	 *            the server that creates the other side of the connection
+	 */
+	public ProtocolSocket(LocalServer server) throws IOException {
+
+		LocalTransport local = new LocalTransport();
+
+		transport = local;
+
+		local.peer = server.connect(this);
+
+		transport.start();
+	}
+	
+	/**
+	 * Creates the server side of a connection to a client in the same virtual
+	 * machine, see {@link LocalServer#connect(ProtocolSocket)}.
+	 * 
+	 * @param peer
+	 *            the client side of the connection
+	 */
+	public ProtocolSocket(ProtocolSocket peer) throws IOException {
+
+		if (!(peer.transport instanceof LocalTransport))
+			throw new IOException("Not a local connection");
+
+		LocalTransport local = new LocalTransport();
+
+		local.peer = peer;
+
+		transport = local;
+
+		transport.start();
+	}
+	
+	/**
+	 * Creates a logical connection that is carried by another socket, the
+	 * session, together with other logical connections. The other side of the
+	 * session creates its end of the logical connection in
+	 * {@link #openSlot(int, Message)} when the first message arrives.
+	 * 
+	 * @param session
+	 *            the socket that carries the connection
+	 * @param slot
+	 *            the number of the connection, unique within the session
+	 */
+	public ProtocolSocket(ProtocolSocket session, int slot) throws IOException {
+
+		if (session.transport instanceof SlotTransport)
+			throw new IOException("Sessions can not be nested");
+
+		synchronized (session.slots) {
+
+			if (session.slots.containsKey(slot))
+				throw new IOException("Slot already in use: " + slot);
+
+			session.slots.put(slot, this);
+
+		}
+
+		transport = new SlotTransport(session, slot);
+
+		transport.start();
+	}
+	
+	public byte getFormat() {
+		return codec.getFormat();
+	}
+	
+	/**
+	 * Sets the format of outgoing frames. Incoming frames of any format are
+	 * always accepted.
+	 * 
+	 * @param format
+	 *            one of the <tt>MessageCodec.FORMAT_*</tt> constants
+	 */
+	protected void setFormat(byte format) {
+		codec.setFormat(format);
 		
-			if (inQueue.isEmpty())
-				return null;
+		// the frames of a logical connection are encoded by its session
+		if (transport instanceof SlotTransport)
+			((SlotTransport) transport).session.setFormat(format);
+	}
+	
+	/**
+	 * Returns the next incoming message that was not handled by
+	 * {@link #handleMessage(Message)} of a subclass.
+	 * 
+	 * @return the message or <tt>null</tt> if there is none
+	 */
+	public Message receiveMessage() {
 		
-			return inQueue.poll();
-			
-		}
+		return inQueue.poll();
 		
 	}
 	
+	/**
+	 * Waits for the next incoming message.
+	 * 
+	 * @return the message or <tt>null</tt> if the socket was closed
+	 */
 	public Message waitMessage() {
 		
-		synchronized (inQueue) {
-			while (true) {
-			
-				if (inQueue.isEmpty())
-					try {
-						inQueue.wait();
-					} catch (InterruptedException e) {}
-				else break;
-			}
-			return inQueue.poll();
-		}
+		return inQueue.take();
 		
 	}
 	
+	/**
+	 * Queues a message for sending. If the outgoing queue is full the call
+	 * waits until the connection catches up, so it must not be called from
+	 * the thread of a {@link ProtocolSelector}.
+	 * 
+	 * @param msg
+	 *            the message
+	 */
 	public void sendMessage(Message msg) {
 		
 		if (msg == null)
 			return;
 			
-		synchronized (outQueue) {
+		if (!outQueue.put(msg))
+			return;
 		
-			outQueue.add(msg);
+		transport.messageQueued();
 		
-			outQueue.notifyAll();
-			
-		}
+	}
+	
+	/**
+	 * Queues a message for sending if there is space in the outgoing queue.
+	 * 
+	 * @param msg
+	 *            the message
+	 * @return false if the message was not queued because the queue is full or
+	 *         the socket is closed
+	 */
+	public boolean trySendMessage(Message msg) {
+		
+		if (msg == null)
+			return false;
+		
+		if (!outQueue.offer(msg))
+			return false;
+		
+		transport.messageQueued();
+		
+		return true;
 		
 	}
 	
 	public void close() {
 		
-		outQueue.clear();
+		// both transport threads may fail at the same time
+		synchronized (this) {
+			
+			if (!running)
+				return;
+			
+			running = false;
+			
+		}
 		
-		running = false;
+		outQueue.close();
+		
+		inQueue.close();
 		
 		onTerminate();
 		
-		try {
-			in.close();
-		} catch (IOException e) {
-		} catch (NullPointerException e) {
-		}
+		transport.close();
 		
-		try {
-			out.close();
-		} catch (IOException e) {
-		} catch (NullPointerException e) {
+		Vector<ProtocolSocket> open;
+		
+		synchronized (slots) {
+			open = new Vector<ProtocolSocket>(slots.values());
 		}
+		
+		for (ProtocolSocket slot : open)
+			slot.close();
+	}
+	
+	/**
+	 * Enables or disables deferred flushing. By default all queued messages
+	 * are written as soon as possible. With deferred flushing the frames are
+	 * buffered until {@link #flush()} is called or the buffer is full, which
+	 * is useful if messages are produced in bursts, like once per game step.
+	 */
+	public void setDeferredFlush(boolean deferred) {
+		
+		// write what was deferred so far
+		if (!deferred)
+			flush();
+		
+		this.deferredFlush = deferred;
+		
+	}
+	
+	/**
+	 * Requests that all messages queued so far are written to the connection.
+	 * Does nothing if flushing is not deferred.
+	 */
+	public void flush() {
+		
+		if (!deferredFlush)
+			return;
+		
+		// if the queue is full the buffer is flushed by the threshold anyway
+		if (outQueue.offer(FLUSH))
+			transport.messageQueued();
+		
+	}
+	
+	private void writeFrame(Message message, DataOutputStream out) throws IOException {
+		
+		if (debug)
+			System.err.println("*** PROTOCOL OUTGOING >>> " + message.getClass().getSimpleName() + " >>>");
+		
+		byte[] frame = codec.encode(message);
+		
+		out.writeInt(frame.length);
+		
+		out.write(frame);
+		
+	}
+	
+	public boolean isClosed() {
+		return !running;
 	}
 	
+	/**
+	 * Handles an incoming message. By default the message is queued for
+	 * {@link #receiveMessage()} and {@link #waitMessage()}, the call waits
+	 * while that queue is full.
+	 */
 	protected void handleMessage(Message message) {
 		
-		synchronized (inQueue) {
-			
-			inQueue.add(message);
-			inQueue.notifyAll();
-			
-		}
+		inQueue.put(message);
 		
 	}
 	
@@ -233,12 +1042,82 @@ public class ProtocolSocket {
 		
 	}
 	
+	/**
+	 * Called when the other side opens a logical connection that is carried by
+	 * this socket. By default logical connections are not accepted.
+	 * 
+	 * @param slot
+	 *            the number of the connection
+	 * @param message
+	 *            the first message of the connection
+	 * @return a socket created with
+	 *         {@link #ProtocolSocket(ProtocolSocket, int)} for this socket and
+	 *         slot or <tt>null</tt> to ignore the message
+	 */
+	protected ProtocolSocket openSlot(int slot, Message message) {
+		return null;
+	}
+	
+	/**
+	 * Returns the number of logical connections that are currently open in
+	 * this socket.
+	 */
+	public int getSlotCount() {
+		return slots.size();
+	}
+	
+	/**
+	 * Returns the socket of an open logical connection that is carried by
+	 * this socket.
+	 * 
+	 * @param slot
+	 *            the number of the connection
+	 * @return the socket or <tt>null</tt> if the slot is not open
+	 */
+	protected ProtocolSocket getSlot(int slot) {
+		return slots.get(slot);
+	}
+	
+	/**
+	 * Passes an incoming message to {@link #handleMessage(Message)}, the
+	 * messages of logical connections to the socket of the connection.
+	 */
+	private void receive(Message message) {
+		
+		if (!(message instanceof Message.SlotMessage)) {
+			handleMessage(message);
+			return;
+		}
+		
+		int slot = ((Message.SlotMessage) message).getSlot();
+		
+		message = ((Message.SlotMessage) message).getMessage();
+		
+		ProtocolSocket socket = slots.get(slot);
+		
+		if (message == null) {
+			
+			// closed by the other side
+			if (socket != null && slots.remove(slot) != null)
+				socket.close();
+			
+			return;
+		}
+		
+		if (socket == null)
+			socket = openSlot(slot, message);
+		
+		if (socket != null)
+			socket.handleMessage(message);
+		
+	}
+	
 	public InetAddress getRemoteAddress() {
-		return socket.getInetAddress();
+		return transport.getRemoteAddress();
 	}
 	
 	public int getRemotePort() {
-		return socket.getPort();
+		return transport.getRemotePort();
 	}
 	
 }
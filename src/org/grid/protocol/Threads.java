@@ -0,0 +1,144 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.protocol;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that serve connections and run agents. By default these
+ * are ordinary platform threads. If the virtual machine supports virtual
+ * threads (Java 21 or newer) and the system property
+ * <tt>org.grid.threads</tt> is set to <tt>virtual</tt>, virtual threads are
+ * used instead, so a single process can run thousands of agents and
+ * connections. The virtual threads are created through reflection, the code
+ * still runs on older virtual machines, which simply fall back to platform
+ * threads.
+ */
+public final class Threads {
+
+	private static ThreadFactory factory = null;
+
+	private static boolean virtual = "virtual".equals(System
+			.getProperty("org.grid.threads"));
+
+	private Threads() {
+
+	}
+
+	/**
+	 * Creates a thread, the thread is not started.
+	 *
+	 * @param name
+	 *            the name of the thread
+	 * @param daemon
+	 *            if a platform thread should be a daemon thread, virtual
+	 *            threads are always daemon threads
+	 * @param task
+	 *            the task of the thread
+	 */
+	public static Thread newThread(String name, boolean daemon, Runnable task) {
+
+		ThreadFactory factory = getFactory();
+
+		if (factory == null) {
+
+			Thread thread = new Thread(task);
+			thread.setName(name);
+			thread.setDaemon(daemon);
+			return thread;
+
+		}
+
+		Thread thread = factory.newThread(task);
+
+		thread.setName(name);
+
+		if (thread.isDaemon() != daemon) {
+			try {
+				thread.setDaemon(daemon);
+			} catch (IllegalArgumentException e) {
+				// virtual threads are always daemon threads
+			}
+		}
+
+		return thread;
+
+	}
+
+	/**
+	 * Returns true if new threads are virtual threads.
+	 */
+	public static synchronized boolean isVirtual() {
+		return getFactory() != null && virtual;
+	}
+
+	/**
+	 * Selects virtual or platform threads for threads created from now on.
+	 *
+	 * @return false if virtual threads were requested but are not supported
+	 */
+	public static synchronized boolean setVirtual(boolean virtual) {
+
+		Threads.virtual = virtual;
+
+		factory = null;
+
+		return !virtual || getFactory() != null;
+
+	}
+
+	/**
+	 * Replaces the factory that creates all threads, <tt>null</tt> restores
+	 * the default. The name and the daemon flag that are requested in
+	 * {@link #newThread(String, boolean, Runnable)} are still applied to the
+	 * threads of the factory.
+	 */
+	public static synchronized void setFactory(ThreadFactory factory) {
+
+		Threads.factory = factory;
+
+		if (factory != null)
+			virtual = false;
+
+	}
+
+	private static synchronized ThreadFactory getFactory() {
+
+		if (factory != null || !virtual)
+			return factory;
+
+		try {
+
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+			factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+
+		} catch (Exception e) {
+
+			System.err.println("Virtual threads are not supported, using platform threads");
+
+			virtual = false;
+
+		}
+
+		return factory;
+
+	}
+
+}
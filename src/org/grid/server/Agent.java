@@ -18,7 +18,6 @@
 package org.grid.server;
 
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Set;
 
 import org.grid.arena.Arena;
@@ -26,7 +25,6 @@ import org.grid.protocol.Message.Direction;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
-import org.grid.server.Game.MessageContainter;
 import org.grid.server.Team.Headquarters;
 import org.grid.server.Team.TeamBody;
 
@@ -43,7 +41,7 @@ public class Agent extends TeamBody {
 
 	private boolean alive = true;
 
-	private LinkedList<MessageContainter> messageQueue = new LinkedList<MessageContainter>();
+	private int channelBusy = 0;
 	
 	public Agent(Team team, int id) {
 
@@ -170,27 +168,22 @@ public class Agent extends TeamBody {
 		return  Arena.TILE_AGENT;
 	}
 
-	public void pushMessage(int to, byte[] message, int delay) {
+	/**
+	 * Reserves the outgoing channel of the agent for a new message. Messages
+	 * of an agent are transmitted one after another, each one takes the given
+	 * number of steps.
+	 * 
+	 * @param step
+	 *            the current step
+	 * @param delay
+	 *            the number of steps that the transfer takes
+	 * @return the step in which the message is delivered
+	 */
+	public int reserveChannel(int step, int delay) {
 		
-		synchronized (messageQueue) {
-			messageQueue.add(new MessageContainter(to, message, delay));	
-		}
-		
-	}
-	
-	public MessageContainter pullMessage() {
-		
-		synchronized (messageQueue) {
+		channelBusy = Math.max(step + 1, channelBusy + 1) + Math.max(0, delay);
 		
-			MessageContainter m = messageQueue.peek();
-			
-			if (m == null) return null;
-			
-			if (m.decreaseDelay() > 0) return null;
-			
-			return messageQueue.poll();
-			
-		}
+		return channelBusy;
 		
 	}
 	
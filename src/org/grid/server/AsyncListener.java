@@ -0,0 +1,425 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.grid.protocol.MessageQueue;
+import org.grid.protocol.Threads;
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Calls a listener on a thread of its own. The events are put into a bounded
+ * queue and the thread that fires them returns immediately, so a slow
+ * listener (a view that repaints, the history that grows) does not hold up
+ * the game step or the connections. The events reach the listener in the
+ * order in which they were fired.
+ *
+ * If the listener cannot keep up and the queue fills, the {@link Overflow}
+ * policy decides what happens to new events. The consumer thread is started
+ * with the first event and ends after a second without events, so listeners
+ * that are rarely called do not keep a thread.
+ */
+public abstract class AsyncListener implements Runnable {
+
+	public static enum Overflow {
+
+		/**
+		 * Wait until there is space in the queue, no event is lost.
+		 */
+		BLOCK,
+
+		/**
+		 * Drop the events that do not fit in the queue.
+		 */
+		DROP,
+
+		/**
+		 * Once the queue is half full only every eighth ordinary event is
+		 * accepted, the rest are dropped. Essential events (game steps,
+		 * connected and disconnected clients) are never dropped, they wait
+		 * for space like with {@link #BLOCK}.
+		 */
+		SAMPLE
+
+	}
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int SAMPLE_RATE = 8;
+
+	protected static abstract class Event {
+
+		private long time = System.nanoTime();
+
+		private boolean essential;
+
+		protected Event(boolean essential) {
+			this.essential = essential;
+		}
+
+		protected abstract void dispatch();
+
+	}
+
+	public static class GameEvents extends AsyncListener implements
+			GameListener {
+
+		private GameListener listener;
+
+		public GameEvents(GameListener listener, Overflow overflow) {
+			this(listener, overflow, DEFAULT_CAPACITY);
+		}
+
+		public GameEvents(GameListener listener, Overflow overflow,
+				int capacity) {
+			super(listener, overflow, capacity);
+			this.listener = listener;
+		}
+
+		@Override
+		public void message(final Team team, final int from, final int to,
+				final int length) {
+
+			publish(new Event(false) {
+				protected void dispatch() {
+					listener.message(team, from, to, length);
+				}
+			});
+
+		}
+
+		@Override
+		public void position(final Team team, final int id,
+				final BodyPosition p) {
+
+			publish(new Event(false) {
+				protected void dispatch() {
+					listener.position(team, id, p);
+				}
+			});
+
+		}
+
+		@Override
+		public void step() {
+
+			publish(new Event(true) {
+				protected void dispatch() {
+					listener.step();
+				}
+			});
+
+		}
+
+	}
+
+	public static class TeamEvents extends AsyncListener implements
+			TeamListener {
+
+		private TeamListener listener;
+
+		public TeamEvents(TeamListener listener, Overflow overflow) {
+			this(listener, overflow, DEFAULT_CAPACITY);
+		}
+
+		public TeamEvents(TeamListener listener, Overflow overflow,
+				int capacity) {
+			super(listener, overflow, capacity);
+			this.listener = listener;
+		}
+
+		@Override
+		public void scoreChange(final Team team, final int score) {
+
+			publish(new Event(false) {
+				protected void dispatch() {
+					listener.scoreChange(team, score);
+				}
+			});
+
+		}
+
+		@Override
+		public void clientConnect(final Team team, final Client client) {
+
+			publish(new Event(true) {
+				protected void dispatch() {
+					listener.clientConnect(team, client);
+				}
+			});
+
+		}
+
+		@Override
+		public void clientDisconnect(final Team team, final Client client) {
+
+			publish(new Event(true) {
+				protected void dispatch() {
+					listener.clientDisconnect(team, client);
+				}
+			});
+
+		}
+
+	}
+
+	public static class ClientEvents extends AsyncListener implements
+			ClientListener {
+
+		private ClientListener listener;
+
+		public ClientEvents(ClientListener listener, Overflow overflow) {
+			this(listener, overflow, DEFAULT_CAPACITY);
+		}
+
+		public ClientEvents(ClientListener listener, Overflow overflow,
+				int capacity) {
+			super(listener, overflow, capacity);
+			this.listener = listener;
+		}
+
+		@Override
+		public void transfer(final Client client, final int messages) {
+
+			publish(new Event(false) {
+				protected void dispatch() {
+					listener.transfer(client, messages);
+				}
+			});
+
+		}
+
+		@Override
+		public void agent(final Client client, final Agent agent) {
+
+			publish(new Event(true) {
+				protected void dispatch() {
+					listener.agent(client, agent);
+				}
+			});
+
+		}
+
+	}
+
+	private String name;
+
+	private Overflow overflow;
+
+	private int capacity;
+
+	private MessageQueue<Event> queue;
+
+	private AtomicBoolean running = new AtomicBoolean(false);
+
+	private volatile boolean closed = false;
+
+	private AtomicLong delivered = new AtomicLong(0);
+
+	private AtomicLong dropped = new AtomicLong(0);
+
+	private AtomicLong sampled = new AtomicLong(0);
+
+	private volatile int maxBacklog = 0;
+
+	private Histogram lag = new Histogram();
+
+	protected AsyncListener(Object listener, Overflow overflow, int capacity) {
+
+		this.name = listener.getClass().getSimpleName();
+
+		if (name.length() == 0)
+			name = listener.getClass().getName();
+		this.overflow = overflow;
+		this.capacity = capacity;
+		this.queue = new MessageQueue<Event>(capacity);
+
+	}
+
+	protected void publish(Event event) {
+
+		if (closed)
+			return;
+
+		boolean accepted;
+
+		switch (overflow) {
+		case DROP:
+			accepted = queue.offer(event);
+			break;
+		case SAMPLE:
+			if (event.essential)
+				accepted = queue.put(event);
+			else if (queue.size() > capacity / 2
+					&& sampled.incrementAndGet() % SAMPLE_RATE != 0)
+				accepted = false;
+			else
+				accepted = queue.offer(event);
+			break;
+		default:
+			accepted = queue.put(event);
+		}
+
+		if (!accepted) {
+			if (!closed)
+				dropped.incrementAndGet();
+			return;
+		}
+
+		int backlog = queue.size();
+
+		if (backlog > maxBacklog)
+			maxBacklog = backlog;
+
+		if (running.compareAndSet(false, true))
+			Threads.newThread("Listener " + name, true, this).start();
+
+	}
+
+	@Override
+	public void run() {
+
+		while (true) {
+
+			Event event = queue.take(IDLE_TIMEOUT, TimeUnit.NANOSECONDS);
+
+			if (event == null) {
+
+				running.set(false);
+
+				// an event that was published after the timeout did not start
+				// a new thread, because this one was still running
+				if (closed || queue.isEmpty()
+						|| !running.compareAndSet(false, true))
+					return;
+
+				continue;
+
+			}
+
+			lag.record(System.nanoTime() - event.time);
+
+			try {
+				event.dispatch();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			delivered.incrementAndGet();
+
+		}
+
+	}
+
+	/**
+	 * Stops the delivery, the events that are still in the queue are
+	 * discarded.
+	 */
+	public void close() {
+
+		closed = true;
+
+		queue.close();
+
+	}
+
+	/**
+	 * Stops accepting events and waits until the events that are already in
+	 * the queue are delivered.
+	 *
+	 * @param timeout
+	 *            the longest time to wait in milliseconds, the remaining
+	 *            events are discarded after that
+	 */
+	public void close(long timeout) {
+
+		closed = true;
+
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (running.get() && !queue.isEmpty()
+				&& System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		queue.close();
+
+	}
+
+	public Overflow getOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * Returns the number of events that wait for the listener.
+	 */
+	public int getBacklog() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the largest number of events that waited for the listener.
+	 */
+	public int getMaxBacklog() {
+		return maxBacklog;
+	}
+
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the time in nanoseconds between firing an event and calling the
+	 * listener.
+	 */
+	public Histogram getLag() {
+		return lag;
+	}
+
+	/**
+	 * Returns a one line summary of the lag, backlog and dropped events.
+	 */
+	public String summary() {
+
+		return String.format(
+				"%s %.2f/%.2f/%.2f ms, backlog %d (max %d), dropped %d", name,
+				lag.getPercentile(50) / 1000000.0,
+				lag.getPercentile(99) / 1000000.0, lag.getMax() / 1000000.0,
+				getBacklog(), maxBacklog, getDropped());
+
+	}
+
+	public String toString() {
+		return "Listener " + name + " (" + overflow + ")";
+	}
+
+}
@@ -41,6 +41,7 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.Scrollable;
 
+import org.grid.server.AsyncListener.Overflow;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.StackLayout.Orientation;
 
@@ -152,7 +153,13 @@ public class ClientsPanel extends JPanel {
 			add(new JScrollPane(clientPanel), BorderLayout.CENTER);
 			
 			
-			team.addListener(this);
+			Overflow overflow = game.getListenerOverflow(Overflow.BLOCK);
+
+			if (overflow == null)
+				team.addListener(this);
+			else
+				team.addListener(new AsyncListener.TeamEvents(this, overflow,
+						game.getListenerCapacity()));
 
 		}
 		
@@ -244,7 +251,14 @@ public class ClientsPanel extends JPanel {
 		private ClientPanel(Client cl) {
 			super();
 			this.client = cl;
-			client.addListener(this);
+			// the traffic display may lose events
+			Overflow overflow = game.getListenerOverflow(null);
+
+			if (overflow == null)
+				client.addListener(this);
+			else
+				client.addListener(new AsyncListener.ClientEvents(this, overflow,
+						game.getListenerCapacity()));
 			
 			setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
 			
@@ -18,22 +18,36 @@
 package org.grid.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashSet;
 import java.util.Vector;
 
+import org.grid.protocol.LocalServer;
 import org.grid.protocol.Message;
+import org.grid.protocol.MessageCodec;
 import org.grid.protocol.Neighborhood;
+import org.grid.protocol.Position;
+import org.grid.protocol.ProtocolSelector;
 import org.grid.protocol.ProtocolSocket;
+import org.grid.server.Field.BodyPosition;
 import org.grid.protocol.Message.AcknowledgeMessage;
 import org.grid.protocol.Message.MoveMessage;
+import org.grid.protocol.Message.MulticastMessage;
+import org.grid.protocol.Message.ReceiveMessage;
 import org.grid.protocol.Message.RegisterMessage;
 import org.grid.protocol.Message.ScanMessage;
 import org.grid.protocol.Message.SendMessage;
+import org.grid.protocol.Message.SlotMessage;
+import org.grid.protocol.Message.StateDeltaMessage;
+import org.grid.protocol.Message.StateMessage;
+import org.grid.protocol.Message.SubscribeMessage;
 
 
-public class Dispatcher implements Runnable {
+public class Dispatcher implements Runnable, StepListener, LocalServer {
 
 	public static enum Status {UNKNOWN, REGISTERED, USED}
 	
@@ -43,14 +57,76 @@ public class Dispatcher implements Runnable {
 		
 		private Team team;
 		
-		private Agent agent = null;
+		private volatile Agent agent = null;
 		
 		private int totalMessages = 0, scanMessages = 0, msgMessages = 0;
 		
+		private boolean deltaStates = false;
+		
+		private Neighborhood lastState = null;
+		
+		private Position lastOrigin = null;
+		
+		private volatile int subscription = 0;
+		
 		public Client(Socket socket)
 				throws IOException {
 			super(socket);
 			listeners = new Vector<ClientListener>();
+			setDeferredFlush(batching);
+		}
+		
+		public Client(SocketChannel channel, ProtocolSelector selector)
+				throws IOException {
+			super(channel, selector);
+			listeners = new Vector<ClientListener>();
+			setDeferredFlush(batching);
+		}
+		
+		public Client(ProtocolSocket peer)
+				throws IOException {
+			super(peer);
+			listeners = new Vector<ClientListener>();
+		}
+		
+		public Client(Client session, int slot)
+				throws IOException {
+			super(session, slot);
+			listeners = new Vector<ClientListener>();
+			setDeferredFlush(batching);
+		}
+		
+		/**
+		 * Opens a slot for every agent that registers over this connection,
+		 * each slot is served like a separate client.
+		 */
+		@Override
+		protected ProtocolSocket openSlot(int slot, Message message) {
+			
+			if (!(message instanceof RegisterMessage))
+				return null;
+			
+			// closed slots are removed from the session, only open ones count
+			if (getSlotCount() >= maxSlots) {
+				Server.log("Client %s opened too many slots, disconnecting", this);
+				close();
+				return null;
+			}
+			
+			try {
+				
+				Client cl = new Client(this, slot);
+				
+				synchronized (clients) {
+					clients.add(cl);
+				}
+				
+				return cl;
+				
+			} catch (IOException e) {
+				return null;
+			}
+			
 		}
 		
 		protected void handleMessage(Message message) {
@@ -71,7 +147,7 @@ public class Dispatcher implements Runnable {
 	
 					if (team == null) {
 						
-						Main.log("Unknown team: " + ((RegisterMessage) message).getTeam());
+						Server.log("Unknown team: " + ((RegisterMessage) message).getTeam());
 						close();
 						return;
 					}
@@ -83,20 +159,26 @@ public class Dispatcher implements Runnable {
 						if (passphrase == null) passphrase = "";
 						
 						if (!passphrase.equals(team.getPassphrase())) {
-							Main.log("Rejected client %s for team %s: invalid passphrase", this, ((RegisterMessage) message).getTeam());
+							Server.log("Rejected client %s for team %s: invalid passphrase", this, ((RegisterMessage) message).getTeam());
 							close();
 							return;
 						}
 						
 					}
 					
-					Main.log("New client joined team " + team + ": " + this);
+					Server.log("New client joined team " + team + ": " + this);
 					
 					team.addClient(this);
 					
 					status = Status.REGISTERED;
 					
-					sendMessage(new Message.AcknowledgeMessage());
+					if (binaryFormat && ((RegisterMessage) message).supportsFormat(MessageCodec.FORMAT_BINARY))
+						setFormat(MessageCodec.FORMAT_BINARY);
+					
+					deltaStates = Dispatcher.this.deltaStates && ((RegisterMessage) message).supportsFeature(MessageCodec.FEATURE_DELTA_STATES);
+					
+					sendMessage(new Message.AcknowledgeMessage(getFormat(), 
+							deltaStates ? MessageCodec.FEATURE_DELTA_STATES : 0));
 				
 				}
 				
@@ -121,9 +203,14 @@ public class Dispatcher implements Runnable {
 					
 					scanMessages++;
 					
-					Neighborhood n = game.scanNeighborhood(neighborhoodSize, getAgent());
+					sendState(((ScanMessage) message).getStamp(), ((ScanMessage) message).isKeyframe());
+					
+					return;
+				}
+				
+				if (message instanceof SubscribeMessage) {
 					
-					sendMessage(new Message.StateMessage(getAgent().getDirection(), n));
+					subscription = Math.max(0, ((SubscribeMessage) message).getPeriod());
 					
 					return;
 				}
@@ -135,7 +222,7 @@ public class Dispatcher implements Runnable {
 					int to = ((SendMessage) message).getTo();
 					
 					if (((SendMessage)message).getMessage() == null || ((SendMessage)message).getMessage().length > maxMessageSize) {
-						Main.log("Message from %d to %d rejected: too long", agent.getId(), to);
+						Server.log("Message from %d to %d rejected: too long", agent.getId(), to);
 						return;
 					}
 					
@@ -144,6 +231,22 @@ public class Dispatcher implements Runnable {
 					return;
 				}				
 
+				if (message instanceof MulticastMessage) {
+					
+					msgMessages++;
+					
+					byte[] data = ((MulticastMessage) message).getMessage();
+					
+					if (data == null || data.length > maxMessageSize) {
+						Server.log("Message from %d rejected: too long", agent.getId());
+						return;
+					}
+					
+					game.multicast(team, agent.getId(), ((MulticastMessage) message).getTo(), data);						
+					
+					return;
+				}
+
 				if (message instanceof MoveMessage) {
 										
 					game.move(team, agent.getId(), ((MoveMessage) message).getDirection());
@@ -167,6 +270,10 @@ public class Dispatcher implements Runnable {
 		
 		public void setAgent(Agent agent) {
 		
+			resetState();
+			
+			subscription = 0;
+			
 			if (this.agent != null) {
 				status = Status.REGISTERED;
 				sendMessage(new Message.TerminateMessage());
@@ -183,6 +290,99 @@ public class Dispatcher implements Runnable {
 			
 		}
 
+		/**
+		 * Sends the current neighborhood of the agent. If delta states are
+		 * enabled, only the cells that changed since the previous state are
+		 * sent, unless a keyframe is requested, the client may have missed the
+		 * previous state or the difference is larger than the neighborhood.
+		 */
+		private synchronized void sendState(int stamp, boolean keyframe) {
+			
+			Agent agent = this.agent;
+			
+			if (agent == null)
+				return;
+			
+			Position origin = new Position(0, 0);
+			
+			Neighborhood n = game.scanNeighborhood(neighborhoodSize, agent, origin);
+			
+			if (deltaStates && !keyframe && n != null && lastState != null) {
+				
+				int shiftX = origin.getX() - lastOrigin.getX();
+				int shiftY = origin.getY() - lastOrigin.getY();
+				
+				int[] changes = n.difference(lastState, shiftX, shiftY);
+				
+				if (changes != null) {
+					
+					lastState = n;
+					lastOrigin = origin;
+					
+					StateDeltaMessage delta = new StateDeltaMessage(agent.getDirection(), 
+							n.getSize(), shiftX, shiftY, changes, n.checksum());
+					
+					delta.setStamp(stamp);
+					
+					sendMessage(delta);
+					
+					return;
+				}
+				
+			}
+			
+			lastState = deltaStates ? n : null;
+			lastOrigin = origin;
+			
+			StateMessage state = new StateMessage(agent.getDirection(), n);
+			
+			state.setStamp(stamp);
+			
+			sendMessage(state);
+			
+		}
+		
+		/**
+		 * Sends the state of a subscribed agent if it is due in this step or
+		 * if the agent moved to another cell since the last state. Called by
+		 * the game thread at the end of a step.
+		 */
+		private synchronized void push(int step) {
+			
+			int period = subscription;
+			
+			Agent agent = this.agent;
+			
+			if (period == 0 || agent == null || status != Status.USED)
+				return;
+			
+			if (step % period != 0) {
+				
+				BodyPosition position = game.getField().getPosition(agent);
+				
+				if (position == null)
+					return;
+				
+				if (lastOrigin != null && lastOrigin.getX() == position.getX() 
+						&& lastOrigin.getY() == position.getY())
+					return;
+				
+			}
+			
+			sendState(step, false);
+			
+		}
+		
+		/**
+		 * Forgets the last state, the next state is sent complete.
+		 */
+		private synchronized void resetState() {
+			
+			lastState = null;
+			lastOrigin = null;
+			
+		}
+		
 		@Override
 		protected void onTerminate() {
 			
@@ -264,6 +464,49 @@ public class Dispatcher implements Runnable {
 
 		}
 		
+		/**
+		 * Messages are sent by the game thread and by the threads that serve
+		 * the connections, neither of them may wait for a client that does not
+		 * read its messages. If the outgoing queue of the client is full,
+		 * states and agent messages are dropped, but the client is
+		 * disconnected if a control message can not be sent. States and agent
+		 * messages are flushed at the end of the step, control messages right
+		 * away.
+		 */
+		@Override
+		public void sendMessage(Message message) {
+			
+			Message content = message instanceof SlotMessage ? ((SlotMessage) message).getMessage() : message;
+			
+			boolean control = !(content instanceof StateMessage || content instanceof StateDeltaMessage 
+					|| content instanceof ReceiveMessage);
+			
+			if (trySendMessage(message)) {
+				if (control)
+					flush();
+				return;
+			}
+			
+			// the following delta would not match what the client has
+			if (content instanceof StateMessage || content instanceof StateDeltaMessage) {
+				
+				// the state of a slot is dropped by the session that carries it
+				ProtocolSocket receiver = message instanceof SlotMessage ? getSlot(((SlotMessage) message).getSlot()) : this;
+				
+				if (receiver instanceof Client)
+					((Client) receiver).resetState();
+				
+			}
+			
+			if (isClosed() || !control)
+				return;
+			
+			Server.log("Client %s does not read its messages, disconnecting", this);
+			
+			close();
+			
+		}
+		
 		public void send(int from, byte[] message) {
 			
 			if (status != Status.USED) return;
@@ -276,7 +519,11 @@ public class Dispatcher implements Runnable {
 	
 	private HashSet<Client> clients = new HashSet<Client>();
 	
-	private ServerSocket socket;
+	private ServerSocket socket = null;
+	
+	private ServerSocketChannel channel = null;
+	
+	private ProtocolSelector[] selectors = null;
 	
 	private Game game;
 	
@@ -284,16 +531,51 @@ public class Dispatcher implements Runnable {
 	
 	private int neighborhoodSize = 5;	
 	
+	private boolean binaryFormat = true;
+	
+	private boolean batching = true;
+	
+	private boolean deltaStates = true;
+	
+	private int maxSlots = 100;
+	
+	private volatile boolean running = true;
+	
 	public Dispatcher(int port, Game game) throws IOException {
 		
-		socket = new ServerSocket(port);
-		
 		this.game = game;
 		
+		if (game.getProperty("server.selector", false)) {
+			
+			channel = ServerSocketChannel.open();
+			
+			channel.socket().bind(new InetSocketAddress(port));
+			
+			selectors = new ProtocolSelector[Math.max(1, game.getProperty("server.selector.threads", 2))];
+			
+			for (int i = 0; i < selectors.length; i++)
+				selectors[i] = new ProtocolSelector();
+			
+		} else {
+		
+			socket = new ServerSocket(port);
+		
+		}
+		
 		this.maxMessageSize = game.getProperty("message.size", 256);
 
 		this.neighborhoodSize = game.getNeighborhoodSize();
 		
+		this.binaryFormat = game.getProperty("message.binary", true);
+		
+		this.batching = game.getProperty("server.batching", true);
+		
+		this.deltaStates = game.getProperty("message.delta", true);
+		
+		this.maxSlots = game.getProperty("server.slots", 100);
+		
+		game.addStepListener(this);
+		
 	}
 
 	@Override
@@ -304,7 +586,7 @@ public class Dispatcher implements Runnable {
 			@Override
 			public void run() {
 				
-				while (true) {
+				while (running) {
 					synchronized (clients) {
 					
 						for (Client cl : clients) {
@@ -325,22 +607,144 @@ public class Dispatcher implements Runnable {
 		traffic.setDaemon(true);
 		traffic.start();
 		
+		if (selectors != null) {
+			
+			for (int i = 0; i < selectors.length; i++) {
+				Thread thread = new Thread(selectors[i]);
+				thread.setName("Selector " + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			
+			Server.log("Serving clients with %d selector threads", selectors.length);
+			
+		}
+		
+		int accepted = 0;
 		
-		while (true) {
+		while (running) {
 			try {
-				Socket sck = socket.accept();
-				sck.setTcpNoDelay(true);
-				synchronized (clients) {
-					clients.add(new Client(sck));
+				
+				if (selectors != null) {
+					
+					SocketChannel sck = channel.accept();
+					sck.socket().setTcpNoDelay(true);
+					synchronized (clients) {
+						clients.add(new Client(sck, selectors[accepted % selectors.length]));
+					}
+					
+				} else {
+					
+					Socket sck = socket.accept();
+					sck.setTcpNoDelay(true);
+					synchronized (clients) {
+						clients.add(new Client(sck));
+					}
+					
 				}
 				
+				accepted++;
 				
 			} catch (IOException e) {
-				e.printStackTrace();
+				if (running)
+					e.printStackTrace();
 			}
 		
 		
 		}
 	}
 	
+	/**
+	 * Returns the port that the dispatcher listens on. Useful when the
+	 * dispatcher was created with port 0 and the system chose a free port.
+	 */
+	public int getPort() {
+		
+		if (channel != null)
+			return channel.socket().getLocalPort();
+		
+		return socket.getLocalPort();
+		
+	}
+	
+	/**
+	 * Sends the states of subscribed agents and writes everything that was
+	 * sent to the clients during the step. With batching enabled the messages
+	 * of a client are only written here or when its buffer is full, so the
+	 * states and messages of a step usually leave in a single write.
+	 */
+	@Override
+	public void stepFinished(int step) {
+		
+		Vector<Client> connected;
+		
+		synchronized (clients) {
+			connected = new Vector<Client>(clients);
+		}
+		
+		for (Client cl : connected) {
+			
+			cl.push(step);
+			
+			if (batching)
+				cl.flush();
+			
+		}
+		
+	}
+	
+	/**
+	 * Accepts a client from the same virtual machine. The connection does not
+	 * use the network, messages are passed between the client and the server
+	 * without encoding.
+	 */
+	@Override
+	public ProtocolSocket connect(ProtocolSocket client) throws IOException {
+		
+		if (!running)
+			throw new IOException("Dispatcher is closed");
+		
+		Client cl = new Client(client);
+		
+		synchronized (clients) {
+			clients.add(cl);
+		}
+		
+		return cl;
+		
+	}
+	
+	/**
+	 * Stops accepting connections and disconnects all clients.
+	 */
+	public void close() {
+		
+		running = false;
+		
+		game.removeStepListener(this);
+		
+		try {
+			if (channel != null)
+				channel.close();
+			if (socket != null)
+				socket.close();
+		} catch (IOException e) {
+		}
+		
+		Vector<Client> connected;
+		
+		synchronized (clients) {
+			connected = new Vector<Client>(clients);
+		}
+		
+		for (Client cl : connected)
+			cl.close();
+		
+		if (selectors != null) {
+			for (ProtocolSelector selector : selectors)
+				selector.close();
+		}
+		
+	}
+	
 }
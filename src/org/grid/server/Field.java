@@ -24,9 +24,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -35,11 +35,13 @@ import java.util.Vector;
 import javax.imageio.ImageIO;
 
 import org.grid.arena.Arena;
+import org.grid.arena.CellChanges;
+import org.grid.arena.TrackedArena;
 import org.grid.protocol.Position;
 import org.grid.server.Team.TeamBody;
 
 
-public class Field implements Arena {
+public class Field implements TrackedArena {
 
 	public static class BodyPosition extends Position {
 		
@@ -131,6 +133,12 @@ public class Field implements Arena {
 		
 		private int tile;
 		
+		/**
+		 * Index of the body in the body table of the field, zero if the body
+		 * is not placed on a field.
+		 */
+		private int handle = 0;
+		
 		public Body(int tile) {
 			this.tile = tile;
 		}
@@ -246,105 +254,137 @@ public class Field implements Arena {
 		
 	}
 	
+	/**
+	 * A lightweight view of a single cell. The state of the cell is stored in
+	 * the arrays of the field, so cells can be created on demand.
+	 */
 	public class Cell {
 
-		private Position position;
-		
-		private float offsetX = 0, offsetY = 0;
-		
-		private Body body = null;
-		
-		private int tile;
+		private int index;
 		
-		protected Cell(Position position, int tile) {
+		protected Cell(int index) {
 
-			this.position = position;
-			this.tile = tile;
+			this.index = index;
 			
 		}
 		
 		public boolean isEmpty() {
 			
-			return body == null;
+			return occupants[index] == 0;
 			
 		}
 		
 		public int getTile() {
 			
-			return tile;
+			return tiles[index];
 			
 		}
 
 		public Body getBody() {
 			
-			return body;
+			return getBodyAt(index);
 			
 		}
 		
 		public Position getPosition() {
-			return new Position(this.position);
+			return new Position(index % width, index / width);
 		}
 		
 		private boolean placeBody(Body body, float offsetX, float offsetY) {
 			
-			if (!isEmpty() && this.body != body) 
-				return false;
-				
-			synchronized (positions) {
-				Cell c = positions.get(body);
-				
-				if (c != null) 
-					c.body = null;
-
-				positions.remove(body);
-				positions.put(body, this);
-				this.body = body;				
-			}
-
-			this.offsetX = offsetX;
-			
-			this.offsetY = offsetY;
+			return Field.this.placeBody(index, body, offsetX, offsetY);
 			
-			return true;
 		}
 		
 		public float getBodyOffsetX() {
-			return offsetX;
+			return getOffsetAt(index, true);
 		}
 
 		public float getBodyOffsetY() {
-			return offsetY;
+			return getOffsetAt(index, false);
 		}
 		
 		@Override
 		public String toString() {
-			return String.format("Cell [%d, %d]", position.getX(), position.getY());
+			return String.format("Cell [%d, %d]", index % width, index / width);
+		}
+		
+	}
+	
+	/**
+	 * Base tile of each cell.
+	 */
+	private short[] tiles;
+	
+	/**
+	 * Handle of the body that occupies each cell, zero for empty cells.
+	 */
+	private int[] occupants;
+	
+	/**
+	 * The state of the bodies, indexed by body handles. The table is replaced
+	 * by a larger copy when it is full, the methods that read it without
+	 * holding the lock of the field read the reference once and check the
+	 * handle against that table.
+	 */
+	private static class BodyTable {
+		
+		/**
+		 * The bodies, the first entry is always empty.
+		 */
+		private final Body[] bodies;
+		
+		/**
+		 * Cell index of each body or -1 if the body does not have a position
+		 * (walls).
+		 */
+		private final int[] locations;
+		
+		private final float[] offsetsX, offsetsY;
+		
+		private BodyTable(int length) {
+			
+			bodies = new Body[length];
+			locations = new int[length];
+			offsetsX = new float[length];
+			offsetsY = new float[length];
+			
+		}
+		
+		private BodyTable(BodyTable table, int length) {
+			
+			bodies = Arrays.copyOf(table.bodies, length);
+			locations = Arrays.copyOf(table.locations, length);
+			offsetsX = Arrays.copyOf(table.offsetsX, length);
+			offsetsY = Arrays.copyOf(table.offsetsY, length);
+			
 		}
 		
 	}
 	
-	private Hashtable<Body, Cell> positions = new Hashtable<Body, Cell>();
+	private volatile BodyTable table = new BodyTable(64);
 	
-	private Cell[] cells; 
+	private int[] freeHandles = new int[64];
+	
+	private int freeCount = 0, nextHandle = 1;
 	
 	private int width, height;
 	
+	private CellChanges changes;
+	
 	public Field(int width, int height) {
 		
 		this.width = width;
 		this.height = height;
-		cells = new Cell[width * height];
 		
-		int n = 0;
+		tiles = new short[width * height];
+		occupants = new int[width * height];
+		changes = new CellChanges(width * height);
 		
-		for (int j = 0; j < height; j++) {
-			for (int i = 0; i < width; i++) {
+		for (int n = 0; n < tiles.length; n++) {
 				
-				int grass = ((int) (Math.random() * 10)) % 9;
+			tiles[n] = (short) (((int) (Math.random() * 10)) % 9);
 				
-				cells[n++] = new Cell(new Position(i, j), grass);
-				
-			}
 		}
 		
 	}
@@ -371,11 +411,17 @@ public class Field implements Arena {
 		
 		Field arena = new Field(size.width, size.height);
 		
+		// walls do not move, so one body per wall tile is enough
+		Wall[] wallBodies = new Wall[9];
+		
 		for (Position p : walls) {
 			
-			int wall = Arena.TILE_WALL_0 + ((int) (Math.random() * 10)) % 9;
+			int wall = ((int) (Math.random() * 10)) % 9;
+			
+			if (wallBodies[wall] == null)
+				wallBodies[wall] = new Wall(Arena.TILE_WALL_0 + wall);
 			
-			arena.getCell(p.getX(), p.getY()).body = new Wall(wall);
+			arena.placeWall(p.getY() * arena.width + p.getX(), wallBodies[wall]);
 			
 		}
 		
@@ -389,7 +435,7 @@ public class Field implements Arena {
 		}
 		
 		if (hqcount < teams.size())
-			Main.log("Warning: this map does not contain enough positions for the number of teams declared in the current game!");
+			Server.log("Warning: this map does not contain enough positions for the number of teams declared in the current game!");
 
 		if (count > -1) {
 		
@@ -519,15 +565,159 @@ public class Field implements Arena {
 		if (x < 0 || x >= width || y < 0 || y >= height)
 			return null;
 		
-		return cells[y * width + x]; 
+		return new Cell(y * width + x); 
 		
 	}
 
-	public BodyPosition getPosition(Body body) {
+	public boolean isInside(int x, int y) {
+		
+		return x >= 0 && x < width && y >= 0 && y < height;
+		
+	}
+	
+	/**
+	 * Returns the body at the given cell without creating any intermediate
+	 * objects.
+	 * 
+	 * @return the body or <tt>null</tt> if the cell is empty or outside of
+	 *         the field
+	 */
+	public Body getBody(int x, int y) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		
+		return getBodyAt(y * width + x);
+		
+	}
+	
+	private Body getBodyAt(int index) {
+		
+		BodyTable t = table;
+		
+		int handle = occupants[index];
+		
+		// the handle may be newer than the table that was read
+		return handle < t.bodies.length ? t.bodies[handle] : null;
+		
+	}
+	
+	private float getOffsetAt(int index, boolean horizontal) {
+		
+		BodyTable t = table;
+		
+		int handle = occupants[index];
+		
+		if (handle >= t.bodies.length)
+			return 0;
+		
+		return horizontal ? t.offsetsX[handle] : t.offsetsY[handle];
 		
-		Cell cell = positions.get(body);
+	}
+	
+	public synchronized BodyPosition getPosition(Body body) {
+		
+		int location = getLocation(body);
+		
+		if (location < 0)
+			return null;
+		
+		return new BodyPosition(location % width, location / width, table.offsetsX[body.handle], table.offsetsY[body.handle]);
+	}
+	
+	/**
+	 * Computes L_inf norm for distance between two bodies.
+	 * 
+	 * @return distance or -1 if one of the bodies is not on the field
+	 */
+	public synchronized int getDistance(Body b1, Body b2) {
+		
+		int l1 = getLocation(b1);
+		int l2 = getLocation(b2);
+		
+		if (l1 < 0 || l2 < 0)
+			return -1;
+		
+		return Math.max(Math.abs(l1 % width - l2 % width), Math.abs(l1 / width - l2 / width));
+		
+	}
+	
+	private boolean isRegistered(Body body) {
+		
+		return body.handle != 0 && body.handle < nextHandle && table.bodies[body.handle] == body;
+		
+	}
+	
+	private int getLocation(Body body) {
+		
+		if (body == null || !isRegistered(body))
+			return -1;
+		
+		return table.locations[body.handle];
+		
+	}
+	
+	private int register(Body body) {
+		
+		int handle;
+		
+		if (freeCount > 0) {
+			handle = freeHandles[--freeCount];
+		} else {
+			
+			handle = nextHandle++;
+			
+			if (handle == table.bodies.length)
+				table = new BodyTable(table, table.bodies.length * 2);
+			
+		}
+		
+		BodyTable t = table;
+		
+		t.bodies[handle] = body;
+		t.locations[handle] = -1;
+		t.offsetsX[handle] = 0;
+		t.offsetsY[handle] = 0;
+		body.handle = handle;
+		
+		return handle;
+		
+	}
+	
+	private synchronized boolean placeBody(int index, Body body, float offsetX, float offsetY) {
+		
+		int handle = isRegistered(body) ? body.handle : 0;
+		
+		if (occupants[index] != 0 && occupants[index] != handle)
+			return false;
+		
+		if (handle == 0)
+			handle = register(body);
+		
+		int previous = table.locations[handle];
+		
+		if (previous >= 0) {
+			occupants[previous] = 0;
+			changes.mark(previous);
+		}
+		
+		occupants[index] = handle;
+		changes.mark(index);
+		table.locations[handle] = index;
+		table.offsetsX[handle] = offsetX;
+		table.offsetsY[handle] = offsetY;
+		
+		return true;
+	}
+	
+	private synchronized void placeWall(int index, Body wall) {
+		
+		if (!isRegistered(wall))
+			register(wall);
+		
+		occupants[index] = wall.handle;
+		changes.mark(index);
 		
-		return cell == null ? null : new BodyPosition(cell.position, cell.offsetX, cell.offsetY);
 	}
 	
 	public Collection<Cell> getNeighborhood(int x, int y) {
@@ -591,69 +781,76 @@ public class Field implements Arena {
 		
 	}
 	
-	public void removeBody(Body body) {
+	public synchronized void removeBody(Body body) {
 		
-		BodyPosition bp = getPosition(body);
+		int location = getLocation(body);
 		
-		if (bp == null)
+		if (location < 0)
 			return;
 		
-		Cell cell = getCell(bp.getX(), bp.getY());
-		
-		if (cell == null)
-			return;
+		int handle = body.handle;
 		
-		synchronized (positions) {
-			cell.body = null;
-			positions.remove(body);			
+		if (occupants[location] == handle) {
+			occupants[location] = 0;
+			changes.mark(location);
 		}
+		
+		table.bodies[handle] = null;
+		table.locations[handle] = -1;
+		body.handle = 0;
+		
+		if (freeCount == freeHandles.length)
+			freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+		
+		freeHandles[freeCount++] = handle;
 
 	}
 
+	@Override
+	public int[] takeChanges() {
+		return changes.take();
+	}
+
 	@Override
 	public int getBodyTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBody().getTile();
+		Body b = getBody(x, y);
+		if (b != null)
+			return b.getTile();
 
 		return 0;
 	}
 
 	@Override
 	public float getBodyOffsetX(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetX();
+		if (!isInside(x, y))
+			return 0;
 
-		return 0;
+		return getOffsetAt(y * width + x, true);
 	}
 
 	@Override
 	public float getBodyOffsetY(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetY();
+		if (!isInside(x, y))
+			return 0;
 
-		return 0;
+		return getOffsetAt(y * width + x, false);
 	}
 
 	@Override
 	public int getBaseTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null)
-			return c.getTile();
+		if (!isInside(x, y))
+			return 0;
 
-		return 0;
+		return tiles[y * width + x];
 	}
 
 	@Override
 	public Color getBodyColor(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null
-				&& (c.getBody() instanceof TeamBody))
-			return ((TeamBody) c.getBody()).getTeam().getColor();
+		Body b = getBody(x, y);
+		if (b != null && (b instanceof TeamBody))
+			return ((TeamBody) b).getTeam().getColor();
 
 		return null;
 	}
@@ -666,9 +863,7 @@ public class Field implements Arena {
 		
 			for (int i = 0; i < width; i++) {
 				
-				Cell c = cells[j * width + i];
-				
-				if (!c.isEmpty()) continue;
+				if (occupants[j * width + i] != 0) continue;
 				
 				if (emptyNeighborhood) {
 					
@@ -685,7 +880,7 @@ public class Field implements Arena {
 						
 				}
 				
-				list.add(c);
+				list.add(new Cell(j * width + i));
 				
 			}
 			
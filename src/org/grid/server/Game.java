@@ -21,41 +21,73 @@ import java.awt.Color;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
 
 import org.grid.protocol.Neighborhood;
+import org.grid.protocol.Position;
 import org.grid.protocol.Message.Direction;
+import org.grid.server.AsyncListener.GameEvents;
+import org.grid.server.AsyncListener.Overflow;
 import org.grid.server.Dispatcher.Client;
+import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
 import org.grid.server.Field.Wall;
 import org.grid.server.Team.Headquarters;
+import org.grid.server.Profiler.Phase;
 import org.grid.server.Team.TeamBody;
 
 
 public class Game {
 
+	/**
+	 * A message that waits for delivery.
+	 */
 	public static class MessageContainter {
 		
-		private int to;
+		private Team team;
+
+		private int from;
+
+		private int[] to;
 		
 		private byte[] message;
 
-		private int delay;
-		
-		public MessageContainter(int to, byte[] message, int delay) {
+		public MessageContainter(Team team, int from, int to, byte[] message) {
+			this(team, from, new int[] {to}, message);
+		}
+
+		public MessageContainter(Team team, int from, int[] to, byte[] message) {
 			super();
+			this.team = team;
+			this.from = from;
 			this.to = to;
 			this.message = message;
-			this.delay = delay;
+		}
+
+		public Team getTeam() {
+			return team;
+		}
+
+		public int getFrom() {
+			return from;
 		}
 
 		public int getTo() {
+			return to[0];
+		}
+
+		/**
+		 * Returns the ids of all recipients.
+		 */
+		public int[] getRecipients() {
 			return to;
 		}
 
@@ -63,10 +95,6 @@ public class Game {
 			return message;
 		}
 
-		public int decreaseDelay() {
-			return delay--;
-		}
-		
 	}
 
 	private int spawnFrequency = 10;
@@ -87,6 +115,14 @@ public class Game {
 
 	private Vector<GameListener> listeners = new Vector<GameListener>();
 
+	private Hashtable<GameListener, GameEvents> asyncListeners = new Hashtable<GameListener, GameEvents>();
+
+	private Vector<StepListener> stepListeners = new Vector<StepListener>();
+
+	private Profiler profiler;
+
+	private TimingWheel<MessageContainter> messages = new TimingWheel<MessageContainter>(0);
+
 	private static final Color[] colors = new Color[] { Color.red, Color.blue,
 			Color.green, Color.yellow, Color.pink, Color.orange, Color.black,
 			Color.white };
@@ -105,11 +141,7 @@ public class Game {
 		if (a1 == null || a2 == null)
 			return -1;
 
-		BodyPosition bp1 = field.getPosition(a1);
-		BodyPosition bp2 = field.getPosition(a2);
-
-		return Math.max(Math.abs(bp1.getX() - bp2.getX()), Math.abs(bp1.getY()
-				- bp2.getY()));
+		return field.getDistance(a1, a2);
 	}
 
 	private Game() throws IOException {
@@ -133,11 +165,39 @@ public class Game {
 
 	public static Game loadFromFile(File f) throws IOException {
 
-		Game game = new Game();
+		Properties properties = new Properties();
+
+		FileReader reader = new FileReader(f);
+
+		try {
+			properties.load(reader);
+		} finally {
+			reader.close();
+		}
+
+		return loadFromProperties(properties, f);
 
-		game.properties = new Properties();
+	}
 
-		game.properties.load(new FileReader(f));
+	/**
+	 * Creates a game from properties that were not necessarily read from a
+	 * game file.
+	 * 
+	 * @param properties
+	 *            the game properties, the object is used by the game and
+	 *            should not be modified later
+	 * @param source
+	 *            the game file, relative paths in the properties are resolved
+	 *            against its directory
+	 */
+	public static Game loadFromProperties(Properties properties, File source)
+			throws IOException {
+
+		File f = source;
+
+		Game game = new Game();
+
+		game.properties = properties;
 
 		game.gameSource = f;
 
@@ -155,7 +215,7 @@ public class Game {
 			try {
 				database = new TeamDatabase(tdbFile);
 			} catch (IOException e) {
-				Main.log("Unable to load team database: %s", e.toString());
+				Server.log("Unable to load team database: %s", e.toString());
 			}
 		}
 		
@@ -178,7 +238,7 @@ public class Game {
 				game.teams.put(id, team);
 			}
 
-			Main.log("Registered team: " + id);
+			Server.log("Registered team: " + id);
 
 		}
 
@@ -202,6 +262,8 @@ public class Game {
 
 		game.field = Field.loadFromFile(fldFile, game);
 
+		game.profiler = new Profiler(1000000000L / Math.max(1, game.getSpeed()));
+
 		return game;
 
 	}
@@ -222,28 +284,37 @@ public class Game {
 
 		step++;
 
+		long start = System.nanoTime();
+
+		long time = start;
+
 		fireStepEvent();
-		
+
+		time = profiler.record(Phase.LISTENERS, time);
+
 		// handle moves and collisions
 		for (Team t : teams.values()) {
-			for (Agent a : t.move(field)) {
-				
-				synchronized (listeners) {
-					for (GameListener l : listeners) {
-						try {
-							l.position(t, a.getId(), field.getPosition(a));
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
 
-					}
-				}
+			Collection<Agent> moved = t.move(field);
+
+			time = profiler.record(Phase.MOVE, time);
+
+			for (Agent a : moved) {
+				
+				firePositionEvent(t, a.getId(), field.getPosition(a));
 				
 			}
-			
-			t.dispatch();
+
+			time = profiler.record(Phase.LISTENERS, time);
+		}
+
+		// deliver messages that are due in this step
+		for (MessageContainter m : messages.advance()) {
+			deliver(m);
 		}
 
+		time = profiler.record(Phase.DISPATCH, time);
+
 		// spawn new agents
 		spawnCounter--;
 		if (spawnCounter == 0) {
@@ -251,16 +322,43 @@ public class Game {
 			spawnCounter = spawnFrequency;
 		}
 
+		time = profiler.record(Phase.SPAWN, time);
+
 		// remove dead agents
 		for (Team t : teams.values()) {
-			t.cleanup(field);
+			for (Agent a : t.cleanup(field))
+				firePositionEvent(t, a.getId(), null);
 		}
 
+		time = profiler.record(Phase.CLEANUP, time);
+
+		synchronized (stepListeners) {
+			for (StepListener l : stepListeners) {
+				try {
+					l.stepFinished(step);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		profiler.record(Phase.LISTENERS, time);
+
+		profiler.finish(step, start);
+
 		// check end conditions?
 		// TODO
 
 	}
 
+	/**
+	 * Returns the profiler that measures the duration of the phases of every
+	 * step.
+	 */
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
 	private void spawnNewAgents() {
 
 		for (Team t : teams.values()) {
@@ -287,6 +385,8 @@ public class Game {
 
 					field.putBody(agt, new BodyPosition(c.getPosition(), 0, 0));
 
+					firePositionEvent(t, agt.getId(), field.getPosition(agt));
+
 					break;
 				}
 
@@ -297,6 +397,19 @@ public class Game {
 	}
 
 	public Neighborhood scanNeighborhood(int size, Agent agent) {
+		return scanNeighborhood(size, agent, null);
+	}
+
+	/**
+	 * Scans the neighborhood of an agent.
+	 * 
+	 * @param origin
+	 *            if not <tt>null</tt>, receives the position of the agent at
+	 *            the time of the scan
+	 * @return the neighborhood or <tt>null</tt> if the agent is not on the
+	 *         field
+	 */
+	public Neighborhood scanNeighborhood(int size, Agent agent, Position origin) {
 
 		Neighborhood n = new Neighborhood(size);
 
@@ -305,31 +418,39 @@ public class Game {
 		if (bp == null)
 			return null;
 
+		if (origin != null) {
+			origin.setX(bp.getX());
+			origin.setY(bp.getY());
+		}
+
 		for (int j = -size; j <= size; j++) {
 			for (int i = -size; i <= size; i++) {
 
-				Cell c = field.getCell(bp.getX() + i, bp.getY() + j);
+				int x = bp.getX() + i;
+				int y = bp.getY() + j;
 
-				if (c == null) {
+				if (!field.isInside(x, y)) {
 					n.setCell(i, j, Neighborhood.WALL);
 					continue;
 				}
 
-				if (c.isEmpty()) {
+				Body body = field.getBody(x, y);
+
+				if (body == null) {
 					n.setCell(i, j, Neighborhood.EMPTY);
 					continue;
 				}
 
-				if (c.getBody() instanceof Wall) {
+				if (body instanceof Wall) {
 					n.setCell(i, j, Neighborhood.WALL);
 					continue;
 				}
 
-				if (c.getBody() instanceof TeamBody) {
+				if (body instanceof TeamBody) {
 
-					Team t = ((TeamBody) c.getBody()).getTeam();
+					Team t = ((TeamBody) body).getTeam();
 
-					if (c.getBody() instanceof Headquarters) {
+					if (body instanceof Headquarters) {
 						n
 								.setCell(
 										i,
@@ -339,10 +460,10 @@ public class Game {
 						continue;
 					}
 
-					if (c.getBody() instanceof Agent) {
+					if (body instanceof Agent) {
 
-						n.setCell(i, j, t == agent.getTeam() ? ((Agent) c
-								.getBody()).getId() : Neighborhood.OTHER);
+						n.setCell(i, j, t == agent.getTeam() ? ((Agent) body)
+								.getId() : Neighborhood.OTHER);
 						continue;
 					}
 				}
@@ -365,6 +486,9 @@ public class Game {
 
 	public boolean getProperty(String key, boolean def) {
 
+		if (properties.getProperty(key) == null)
+			return def;
+
 		try {
 			return Boolean.parseBoolean(properties.getProperty(key));
 		} catch (Exception e) {
@@ -412,18 +536,245 @@ public class Game {
 
 	}
 
+	/**
+	 * How long removing an asynchronous listener waits for the events that
+	 * were already fired, in milliseconds.
+	 */
+	private static final long REMOVE_TIMEOUT = 1000;
+
+	/**
+	 * Adds a listener that is called on a thread of its own, see
+	 * {@link AsyncListener}. The game option <tt>server.listeners.async</tt>
+	 * can turn this off.
+	 *
+	 * @param overflow
+	 *            what to do with events that the listener cannot keep up with
+	 *            or <tt>null</tt> if the listener can lose events and the
+	 *            policy of the game option
+	 *            <tt>server.listeners.overflow</tt> should be used
+	 */
+	public void addListener(GameListener listener, Overflow overflow) {
+
+		overflow = getListenerOverflow(overflow);
+
+		if (overflow == null) {
+			addListener(listener);
+			return;
+		}
+
+		GameEvents events = new GameEvents(listener, overflow,
+				getListenerCapacity());
+
+		asyncListeners.put(listener, events);
+
+		addListener(events);
+
+	}
+
+	/**
+	 * Removes a listener. The events that an asynchronous listener has not
+	 * received yet are still delivered, but the removal waits for them at
+	 * most a second.
+	 */
 	public void removeListener(GameListener listener) {
+
+		GameEvents events = asyncListeners.remove(listener);
+
+		if (events != null) {
+			events.close(REMOVE_TIMEOUT);
+			listener = events;
+		}
+
 		synchronized (listeners) {
 			listeners.remove(listener);
 		}
 	}
 
+	/**
+	 * The overflow policy of listeners that do not choose one and the game
+	 * does not set one.
+	 */
+	private static final Overflow DEFAULT_OVERFLOW = Overflow.SAMPLE;
+
+	/**
+	 * Returns the overflow policy for an asynchronous listener. A policy that
+	 * the listener chose is never replaced, the history, the visit map and
+	 * the replay recorder can not lose events.
+	 *
+	 * @param overflow
+	 *            the policy that the listener would like to use or
+	 *            <tt>null</tt> for the policy of the game
+	 * @return the policy or <tt>null</tt> if listeners should be called
+	 *         directly
+	 */
+	Overflow getListenerOverflow(Overflow overflow) {
+
+		if (!getProperty("server.listeners.async", true))
+			return null;
+
+		if (overflow != null)
+			return overflow;
+
+		String policy = getProperty("server.listeners.overflow", null);
+
+		if (policy == null)
+			return DEFAULT_OVERFLOW;
+
+		try {
+			return Overflow.valueOf(policy.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Server.log("Unknown listener overflow policy: %s", policy);
+			return DEFAULT_OVERFLOW;
+		}
+
+	}
+
+	int getListenerCapacity() {
+		return getProperty("server.listeners.queue", AsyncListener.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Returns a one line summary of the lag of all asynchronous listeners or
+	 * <tt>null</tt> if there are none.
+	 */
+	public String getListenerSummary() {
+
+		StringBuilder builder = new StringBuilder();
+
+		synchronized (asyncListeners) {
+			for (GameEvents events : asyncListeners.values()) {
+
+				if (builder.length() > 0)
+					builder.append("; ");
+
+				builder.append(events.summary());
+
+			}
+		}
+
+		return builder.length() == 0 ? null : builder.toString();
+
+	}
+
+	public void addStepListener(StepListener listener) {
+		synchronized (stepListeners) {
+			stepListeners.add(listener);
+		}
+	}
+
+	public void removeStepListener(StepListener listener) {
+		synchronized (stepListeners) {
+			stepListeners.remove(listener);
+		}
+	}
+
+	/**
+	 * Delivers a message to the receiver. Messages of agents that are no longer
+	 * alive are dropped together with the agent.
+	 */
+	private void deliver(MessageContainter message) {
+
+		Team team = message.getTeam();
+
+		if (team.findById(message.getFrom()) == null)
+			return;
+
+		for (int to : message.getRecipients()) {
+
+			Client cltto = team.findById(to);
+
+			if (cltto != null)
+				cltto.send(message.getFrom(), message.getMessage());
+
+		}
+
+	}
+
+	/**
+	 * Sends the same message to several agents of a team. Only the recipients
+	 * within the range of the sender receive the message. The transfer time
+	 * is charged to the sender once, all recipients receive the message in
+	 * the same step.
+	 * 
+	 * @param to
+	 *            the ids of the recipients or <tt>null</tt> for all agents of
+	 *            the team
+	 */
+	public synchronized void multicast(Team team, int from, int[] to, byte[] message) {
+
+		Client cltfrom = team.findById(from);
+
+		if (cltfrom == null)
+			return;
+
+		Agent sender = cltfrom.getAgent();
+
+		if (sender == null)
+			return;
+
+		Vector<Client> candidates = new Vector<Client>();
+
+		if (to == null) {
+			candidates.addAll(team.getMembers());
+		} else {
+			for (int id : to) {
+				Client c = team.findById(id);
+				if (c != null && !candidates.contains(c))
+					candidates.add(c);
+			}
+		}
+
+		int[] recipients = new int[candidates.size()];
+
+		int count = 0;
+
+		for (Client c : candidates) {
+
+			Agent agent = c.getAgent();
+
+			if (agent == null || agent == sender)
+				continue;
+
+			int dst = distance(sender, agent);
+
+			if (dst > neighborhoodSize || dst < 0)
+				continue;
+
+			recipients[count++] = agent.getId();
+
+		}
+
+		if (count == 0) {
+			Server.log("Message from %d rejected: no recipient in range", from);
+			return;
+		}
+
+		recipients = Arrays.copyOf(recipients, count);
+
+		int due = sender.reserveChannel(step, message.length / messageSpeed);
+
+		messages.schedule(due, new MessageContainter(team, from, recipients, message));
+
+		synchronized (listeners) {
+			for (GameListener l : listeners) {
+				for (int id : recipients) {
+					try {
+						l.message(team, from, id, message.length);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+	}
+
 	public synchronized void message(Team team, int from, int to, byte[] message) {
 		Client cltto = team.findById(to);
 		Client cltfrom = team.findById(from);
 
 		if (from == to) {
-			Main.log("Message from %d to %d rejected: same agent",
+			Server.log("Message from %d to %d rejected: same agent",
 					from, to);
 			return;
 		}
@@ -432,13 +783,15 @@ public class Game {
 
 			int dst = distance(cltfrom.getAgent(), cltto.getAgent());
 			if (dst > neighborhoodSize || dst < 0) {
-				Main.log(
+				Server.log(
 						"Message from %d to %d rejected: too far away", from,
 						to);
 				return;
 			}
 
-			cltfrom.getAgent().pushMessage(to, message, message.length / messageSpeed);
+			int due = cltfrom.getAgent().reserveChannel(step, message.length / messageSpeed);
+
+			messages.schedule(due, new MessageContainter(team, from, to, message));
 
 		} else
 			return;
@@ -455,6 +808,28 @@ public class Game {
 		}
 	}
 
+	/**
+	 * Notifies the listeners about a new position of an agent.
+	 * 
+	 * @param p
+	 *            the position or <tt>null</tt> if the agent was removed from
+	 *            the field
+	 */
+	private void firePositionEvent(Team team, int id, BodyPosition p) {
+
+		synchronized (listeners) {
+			for (GameListener l : listeners) {
+				try {
+					l.position(team, id, p);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+
+			}
+		}
+
+	}
+
 	private void fireStepEvent() {
 		
 		synchronized (listeners) {
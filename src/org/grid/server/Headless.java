@@ -0,0 +1,160 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Game server without any user interface. The game starts as soon as the
+ * server is ready and runs either for a fixed number of steps or until the
+ * process is killed.
+ *
+ * Usage: java org.grid.server.Headless game_file [steps] [--unthrottled]
+ *
+ * In unthrottled mode the next step is started as soon as the previous one is
+ * finished instead of waiting for the <tt>1000 / gameplay.speed</tt>
+ * millisecond step period.
+ */
+public class Headless {
+
+	public static void main(String[] args) throws IOException {
+
+		System.setProperty("java.awt.headless", "true");
+
+		Server.info("Starting headless game server (release %s)", Server.RELEASE);
+
+		String gameFile = null;
+
+		int steps = 0;
+
+		boolean unthrottled = false;
+
+		for (String arg : args) {
+
+			if (arg.equals("--unthrottled")) {
+				unthrottled = true;
+				continue;
+			}
+
+			if (gameFile == null) {
+				gameFile = arg;
+				continue;
+			}
+
+			steps = Integer.parseInt(arg);
+		}
+
+		if (gameFile == null) {
+			Server.info("Please provide game description file location as an argument.");
+			System.exit(1);
+		}
+
+		Game game = Game.loadFromFile(new File(gameFile));
+
+		Server.openLog(game);
+
+		Server.openReplay(game);
+
+		Dispatcher dispatcher = new Dispatcher(Server.PORT, game);
+
+		(new Thread(dispatcher)).start();
+
+		Server.log("Server ready (%s, %s).", steps > 0 ? steps + " steps"
+				: "no step limit", unthrottled ? "unthrottled" : "speed "
+				+ game.getSpeed());
+
+		run(game, steps, unthrottled);
+
+		Server.log("Game finished after %d steps.", game.getStep());
+
+		Server.log("Step profile: %s", game.getProfiler().summary());
+
+		Server.log("Steps over budget: %d", game.getProfiler().getOverrunCount());
+
+		System.exit(0);
+
+	}
+
+	/**
+	 * Steps the game until the given number of steps is reached.
+	 *
+	 * @param game
+	 *            the game to run
+	 * @param steps
+	 *            the number of steps, zero or less means no limit
+	 * @param unthrottled
+	 *            if true the steps are not paced by the game speed
+	 */
+	public static void run(Game game, int steps, boolean unthrottled) {
+
+		run(game, steps, unthrottled, true);
+
+	}
+
+	/**
+	 * Steps the game like {@link #run(Game, int, boolean)}.
+	 * 
+	 * @param verbose
+	 *            if false the progress of the game is not printed
+	 */
+	public static void run(Game game, int steps, boolean unthrottled,
+			boolean verbose) {
+
+		long sleep = 1000 / Math.max(1, game.getSpeed());
+
+		long start, used;
+
+		long periodStart = System.currentTimeMillis();
+
+		while (steps <= 0 || game.getStep() < steps) {
+
+			start = System.currentTimeMillis();
+
+			game.step();
+
+			if (verbose && game.getStep() % 100 == 0) {
+
+				long now = System.currentTimeMillis();
+
+				Server.info("Game step: %d (step: %d fps)", game.getStep(),
+						(100 * 1000) / Math.max(1, now - periodStart));
+
+				periodStart = now;
+			}
+
+			if (verbose && game.getStep() % 1000 == 0)
+				Server.log("Step profile: %s", game.getProfiler().summary());
+
+			if (unthrottled)
+				continue;
+
+			used = System.currentTimeMillis() - start;
+
+			try {
+				if (used < sleep)
+					Thread.sleep(sleep - used);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with logarithmic buckets that are linearly subdivided
+ * (the same layout as HDR histograms). Every power of two range is split into
+ * 32 buckets, so recorded values are accurate to about 3% over the whole range
+ * of a long, while the histogram has a fixed size of a few kilobytes.
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private long[] counts = new long[BUCKETS];
+
+	private long total = 0;
+
+	private long max = 0;
+
+	private static int bucket(long value) {
+
+		if (value < 2 * SUB_COUNT)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+
+		return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+
+	}
+
+	/**
+	 * Returns the largest value that falls into the given bucket.
+	 */
+	private static long highestValue(int bucket) {
+
+		if (bucket < 2 * SUB_COUNT)
+			return bucket;
+
+		int shift = bucket / SUB_COUNT - 1;
+
+		long sub = bucket % SUB_COUNT + SUB_COUNT;
+
+		return ((sub + 1) << shift) - 1;
+
+	}
+
+	public synchronized void record(long value) {
+
+		if (value < 0)
+			value = 0;
+
+		counts[bucket(value)]++;
+
+		total++;
+
+		max = Math.max(max, value);
+
+	}
+
+	public synchronized long getCount() {
+		return total;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values
+	 * fall.
+	 *
+	 * @param percentile
+	 *            percentile between 0 and 100
+	 * @return the value or zero if nothing was recorded
+	 */
+	public synchronized long getPercentile(double percentile) {
+
+		if (total == 0)
+			return 0;
+
+		long limit = Math.max(1, (long) Math.ceil(total * percentile / 100));
+
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+
+			seen += counts[i];
+
+			if (seen >= limit)
+				return Math.min(max, highestValue(i));
+
+		}
+
+		return max;
+
+	}
+
+	public synchronized void reset() {
+
+		Arrays.fill(counts, 0);
+
+		total = 0;
+
+		max = 0;
+
+	}
+
+}
@@ -19,15 +19,30 @@ package org.grid.server;
 
 import java.awt.Color;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Hashtable;
-import java.util.Vector;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.grid.server.Field.BodyPosition;
 
 
+/**
+ * Records the paths of all agents. Only the points where an agent changes its
+ * direction are kept. The points of an agent are stored in columns of
+ * primitive arrays (step, x, y and the offsets packed into bytes) instead of a
+ * position object per point, which keeps long games with many agents small
+ * and fast to walk through.
+ */
 public class History implements Serializable, GameListener {
 
-	private static final long serialVersionUID = -3631531900582757001L;
+	private static final long serialVersionUID = -3631531900582757002L;
+
+	/**
+	 * Offsets are stored with a precision of 1/254 of a cell, which is good
+	 * enough for drawing a path.
+	 */
+	private static final float OFFSET_SCALE = 254f;
 
 	public static class HistoryPosition extends BodyPosition {
 
@@ -40,17 +55,107 @@ public class History implements Serializable, GameListener {
 			this.step = step;
 		}
 
+		public HistoryPosition(int x, int y, float offsetX, float offsetY, int step) {
+			super(x, y, offsetX, offsetY);
+			this.step = step;
+		}
+
 		public int getStep() {
 			return step;
 		}
 		
 	}
 	
+	/**
+	 * A read-only view of the points of an agent that were recorded until it
+	 * was requested. The arrays are shared with the history, points that are
+	 * recorded later are not visible.
+	 */
+	public static class Track implements Iterable<HistoryPosition> {
+
+		private int length;
+
+		private int[] steps, xs, ys;
+
+		private byte[] offsets;
+
+		private Track(int length, int[] steps, int[] xs, int[] ys, byte[] offsets) {
+			this.length = length;
+			this.steps = steps;
+			this.xs = xs;
+			this.ys = ys;
+			this.offsets = offsets;
+		}
+
+		public int size() {
+			return length;
+		}
+
+		public int getStep(int i) {
+			return steps[i];
+		}
+
+		public int getX(int i) {
+			return xs[i];
+		}
+
+		public int getY(int i) {
+			return ys[i];
+		}
+
+		public float getOffsetX(int i) {
+			return offsets[i * 2] / OFFSET_SCALE;
+		}
+
+		public float getOffsetY(int i) {
+			return offsets[i * 2 + 1] / OFFSET_SCALE;
+		}
+
+		public HistoryPosition get(int i) {
+			return new HistoryPosition(xs[i], ys[i], getOffsetX(i), getOffsetY(i), steps[i]);
+		}
+
+		@Override
+		public Iterator<HistoryPosition> iterator() {
+
+			return new Iterator<HistoryPosition>() {
+
+				private int i = 0;
+
+				@Override
+				public boolean hasNext() {
+					return i < length;
+				}
+
+				@Override
+				public HistoryPosition next() {
+
+					if (i >= length)
+						throw new NoSuchElementException();
+
+					return get(i++);
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+			};
+
+		}
+
+	}
+
 	protected class AgentHistory implements Serializable {
 
-		private static final long serialVersionUID = 1L;
+		private static final long serialVersionUID = 2L;
 		
-		private Vector<HistoryPosition> history = new Vector<HistoryPosition>();
+		private int size = 0;
+
+		private int[] steps = new int[16], xs = new int[16], ys = new int[16];
+
+		private byte[] offsets = new byte[32];
 		
 		private transient BodyPosition preprevious, previous;
 		
@@ -58,7 +163,8 @@ public class History implements Serializable, GameListener {
 			
 			if (p == null) {
 				
-				history.add(new HistoryPosition(previous, step-1));
+				if (previous != null)
+					add(previous, step-1);
 				
 				return;
 				
@@ -68,7 +174,7 @@ public class History implements Serializable, GameListener {
 				
 				previous = new BodyPosition(p);
 				
-				history.add(new HistoryPosition(p, step));
+				add(p, step);
 				
 				return;
 			}
@@ -91,14 +197,14 @@ public class History implements Serializable, GameListener {
 			if (Math.abs(pX - (float)previous.getX() - previous.getOffsetX()) > 0.00001f ||
 				Math.abs(pY - (float)previous.getY() - previous.getOffsetY()) > 0.00001f) {
 			
-				history.add(new HistoryPosition(previous, step-1));
+				add(previous, step-1);
 				
 			} else {
 				
-				if (!p.hasOffset() && !history.isEmpty()) {
+				if (!p.hasOffset() && size > 0) {
 					
-					if (!history.lastElement().equals(p))
-						history.add(new HistoryPosition(p, step));
+					if (xs[size - 1] != p.getX() || ys[size - 1] != p.getY())
+						add(p, step);
 					
 				}
 				
@@ -110,6 +216,34 @@ public class History implements Serializable, GameListener {
 			
 		}
 		
+		private synchronized void add(BodyPosition p, int step) {
+
+			if (size == steps.length) {
+				int length = size * 2;
+				steps = Arrays.copyOf(steps, length);
+				xs = Arrays.copyOf(xs, length);
+				ys = Arrays.copyOf(ys, length);
+				offsets = Arrays.copyOf(offsets, length * 2);
+			}
+
+			steps[size] = step;
+			xs[size] = p.getX();
+			ys[size] = p.getY();
+			offsets[size * 2] = (byte) Math.round(p.getOffsetX() * OFFSET_SCALE);
+			offsets[size * 2 + 1] = (byte) Math.round(p.getOffsetY() * OFFSET_SCALE);
+
+			size++;
+
+		}
+
+		public synchronized int size() {
+			return size;
+		}
+
+		public synchronized Track getTrack() {
+			return new Track(size, steps, xs, ys, offsets);
+		}
+
 	}
 	
 	protected class TeamHistory implements Serializable {
@@ -170,7 +304,7 @@ public class History implements Serializable, GameListener {
 		for (TeamHistory th : teams.values()) {
 			
 			for (AgentHistory ah : th.agents.values()) 
-				size += ah.history.size();
+				size += ah.size();
 			
 			
 		}
@@ -181,6 +315,18 @@ public class History implements Serializable, GameListener {
 	
 	public Iterable<HistoryPosition> getAgentHistory(Team team, int id) {
 		
+		return getAgentTrack(team, id);
+		
+	}
+
+	/**
+	 * Returns the recorded points of an agent without creating an object for
+	 * every point.
+	 *
+	 * @return the points or <tt>null</tt> if the agent is not known
+	 */
+	public Track getAgentTrack(Team team, int id) {
+
 		TeamHistory th = teams.get(team.getName());
 		
 		if (th == null)
@@ -191,8 +337,8 @@ public class History implements Serializable, GameListener {
 		if (ah == null)
 			return null;
 		
-		return ah.history;
-		
+		return ah.getTrack();
+
 	}
 
 	@Override
@@ -30,10 +30,6 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.LinkedList;
 
 import javax.swing.AbstractAction;
@@ -48,19 +44,17 @@ import javax.swing.JSplitPane;
 
 import org.grid.arena.Arena;
 import org.grid.arena.SwingView;
+import org.grid.server.AsyncListener.Overflow;
 import org.grid.server.ClientsPanel.SelectionObserver;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
+import org.grid.server.Profiler.Overrun;
 
 
 public class Main {
 
-	private static final int PORT = 5000;
-
-	private static final String RELEASE = "0.9";
-
 	private static Game game;
 
 	private static long renderTime = 0;
@@ -83,12 +77,10 @@ public class Main {
 	
 	private static JLabel gameStepDisplay = new JLabel();
 	
-	private static PrintWriter log;
-	
-	private static final String[] ZOOM_LEVELS_TITLES = new String[] {"tiny", "small", "normal",
+	static final String[] ZOOM_LEVELS_TITLES = new String[] {"tiny", "small", "normal",
 			"big", "huge" };
 
-	private static final int[] ZOOM_LEVELS = new int[] {6, 12, 16, 20, 24 };
+	static final int[] ZOOM_LEVELS = new int[] {6, 12, 16, 20, 24 };
 	
 	private static final int MAX_TEAMS_VERBOSE = 4;
 	
@@ -118,6 +110,8 @@ public class Main {
 
 		private VisitMap visualization = null;
 
+		private boolean overlay = false;
+
 		public class Message {
 
 			private int length, step;
@@ -146,9 +140,13 @@ public class Main {
 
 			Arena view = getArena();
 
-			paintBackground(g, visualization == null ? view : visualization);
-
-			paintObjects(g, view);
+			// the visit map changes with every step, it can not be cached
+			if (visualization == null) {
+				paintArena(g, view);
+			} else {
+				paintBackground(g, visualization);
+				paintObjects(g, view);
+			}
 
 			LinkedList<Message> active = new LinkedList<Message>();
 			int current = game.getStep();
@@ -228,6 +226,26 @@ public class Main {
 
 		}
 
+		@Override
+		public void update(Arena view) {
+
+			super.update(view);
+
+			boolean active;
+
+			synchronized (buffer) {
+				active = visualization != null || !buffer.isEmpty();
+			}
+
+			// the messages and the visit map are painted across the whole
+			// field, one more full repaint clears them when they are gone
+			if (active || overlay)
+				repaint();
+
+			overlay = active;
+
+		}
+
 		@Override
 		public void message(Team team, int from, int to, int length) {
 			synchronized (buffer) {
@@ -263,7 +281,7 @@ public class Main {
 				visualization = new VisitMap(game.getField(), history, a, game
 						.getNeighborhoodSize());
 				setBasePallette((Palette) visualization);
-				game.addListener(visualization);
+				game.addListener(visualization, Overflow.BLOCK);
 			}
 
 		}
@@ -322,7 +340,7 @@ public class Main {
 
 	public static void main(String[] args) throws IOException {
 		
-		info("Starting game server (release %s)", RELEASE);
+		info("Starting game server (release %s)", Server.RELEASE);
 
 		if (args.length < 1) {
 			info("Please provide game description file location as an argument.");
@@ -336,19 +354,18 @@ public class Main {
 
 		game = Game.loadFromFile(new File(args[0]));
 
-		try {
-			log = new PrintWriter(new File(logDate.format(new Date()) + "_" + game.getTitle() + ".log"));
-			
-		} catch (Exception e) {}
+		Server.openLog(game);
 		
-		
-		Dispatcher dispatcher = new Dispatcher(PORT, game);
+		Dispatcher dispatcher = new Dispatcher(Server.PORT, game);
 
 		final int gameSpeed = game.getSpeed();
 
-		game.addListener(view);
+		// the view only shows the latest state, it may lose events
+		game.addListener(view, null);
+
+		game.addListener(history, Overflow.BLOCK);
 
-		game.addListener(history);
+		Server.openReplay(game);
 		
 		(new Thread(new Runnable() {
 
@@ -389,6 +406,15 @@ public class Main {
 										game.getStep(), stepFPS, renderFPS);
 					}
 
+					if (game.getStep() % 1000 == 0 && running) {
+						log("Step profile: %s", game.getProfiler().summary());
+
+						String listeners = game.getListenerSummary();
+
+						if (listeners != null)
+							log("Listener lag: %s (p50/p99/max)", listeners);
+					}
+
 					if (game.getStep() % 10 == 0) {
 						gameStepDisplay.setText(String.format("Step: %d", game.getStep()));
 					}
@@ -397,7 +423,12 @@ public class Main {
 						if (used < sleep)
 							Thread.sleep(sleep - used);
 						else {
-							info("Warning: low frame rate");
+							Overrun overrun = game.getProfiler().getLastOverrun();
+
+							if (overrun != null && overrun.getStep() == game.getStep())
+								info("Warning: low frame rate (%s)", overrun);
+							else
+								info("Warning: low frame rate");
 						}
 					} catch (InterruptedException e) {
 						e.printStackTrace();
@@ -490,29 +521,15 @@ public class Main {
 		
 	}
 	
-	private static DateFormat logDate = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss");
-	
-	private static DateFormat date = new SimpleDateFormat("[hh:mm:ss] ");
-	
 	public static void log(String format, Object ... objects) {
 		
-		try {
+		Server.log(format, objects);
 		
-			String msg = String.format(format, objects);
-			
-			System.out.println(date.format(new Date()) + msg);
-		
-			if (log != null) {
-				log.println(date.format(new Date()) + msg);
-				log.flush();
-			}
-			
-		} catch (Exception e) { e.printStackTrace(); }
 	}
 	
 	public static void info(String format, Object ... objects) {
 		
-		System.out.println(date.format(new Date()) + String.format(format, objects));
+		Server.info(format, objects);
 		
 	}
 	
@@ -0,0 +1,248 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Collects the duration of the individual phases of {@link Game#step()}. For
+ * every phase a histogram of durations is kept and the steps that take longer
+ * than the step period of the game are remembered in a rolling log.
+ */
+public class Profiler {
+
+	public static enum Phase {
+		LISTENERS("listeners"), MOVE("move"), DISPATCH("dispatch"), SPAWN(
+				"spawn"), CLEANUP("cleanup"), STEP("step");
+
+		private String title;
+
+		private Phase(String title) {
+			this.title = title;
+		}
+
+		public String toString() {
+			return title;
+		}
+	}
+
+	public static class Overrun {
+
+		private int step;
+
+		private long[] durations;
+
+		protected Overrun(int step, long[] durations) {
+			this.step = step;
+			this.durations = durations;
+		}
+
+		public int getStep() {
+			return step;
+		}
+
+		public long getDuration(Phase phase) {
+			return durations[phase.ordinal()];
+		}
+
+		/**
+		 * Returns the phase (except the whole step) that took the most time.
+		 */
+		public Phase getSlowestPhase() {
+
+			Phase slowest = Phase.LISTENERS;
+
+			for (Phase p : Phase.values()) {
+				if (p != Phase.STEP
+						&& durations[p.ordinal()] > durations[slowest.ordinal()])
+					slowest = p;
+			}
+
+			return slowest;
+		}
+
+		public String toString() {
+
+			Phase slowest = getSlowestPhase();
+
+			return String.format("step %d took %.2f ms, slowest phase %s %.2f ms",
+					step, millis(durations[Phase.STEP.ordinal()]), slowest,
+					millis(durations[slowest.ordinal()]));
+		}
+	}
+
+	private static final int OVERRUN_LOG_SIZE = 100;
+
+	private static final Phase[] phases = Phase.values();
+
+	private Histogram[] histograms = new Histogram[phases.length];
+
+	private long[] current = new long[phases.length];
+
+	private LinkedList<Overrun> overruns = new LinkedList<Overrun>();
+
+	private int overrunCount = 0;
+
+	private long budget;
+
+	/**
+	 * @param budget
+	 *            the step period in nanoseconds, steps that take longer are
+	 *            logged as overruns
+	 */
+	public Profiler(long budget) {
+
+		this.budget = budget;
+
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new Histogram();
+
+	}
+
+	/**
+	 * Adds time to a phase of the current step. A phase can be recorded in
+	 * several parts.
+	 *
+	 * @param phase
+	 *            the phase
+	 * @param start
+	 *            the start of the part as returned by {@link System#nanoTime()}
+	 * @return the end of the part, can be used as the start of the next one
+	 */
+	public long record(Phase phase, long start) {
+
+		long now = System.nanoTime();
+
+		current[phase.ordinal()] += now - start;
+
+		return now;
+
+	}
+
+	/**
+	 * Closes the current step and records all its phases.
+	 *
+	 * @param step
+	 *            the number of the step
+	 * @param start
+	 *            the start of the step as returned by {@link System#nanoTime()}
+	 */
+	public void finish(int step, long start) {
+
+		current[Phase.STEP.ordinal()] = System.nanoTime() - start;
+
+		for (int i = 0; i < phases.length; i++) {
+			histograms[i].record(current[i]);
+		}
+
+		if (current[Phase.STEP.ordinal()] > budget) {
+
+			synchronized (overruns) {
+
+				overruns.add(new Overrun(step, current.clone()));
+
+				if (overruns.size() > OVERRUN_LOG_SIZE)
+					overruns.removeFirst();
+
+				overrunCount++;
+
+			}
+
+		}
+
+		for (int i = 0; i < phases.length; i++)
+			current[i] = 0;
+
+	}
+
+	public Histogram getHistogram(Phase phase) {
+		return histograms[phase.ordinal()];
+	}
+
+	/**
+	 * Returns the most recent overruns, the oldest first.
+	 */
+	public List<Overrun> getOverruns() {
+
+		synchronized (overruns) {
+			return new Vector<Overrun>(overruns);
+		}
+
+	}
+
+	/**
+	 * Returns the total number of overruns since the start of the game.
+	 */
+	public int getOverrunCount() {
+
+		synchronized (overruns) {
+			return overrunCount;
+		}
+
+	}
+
+	public Overrun getLastOverrun() {
+
+		synchronized (overruns) {
+			return overruns.isEmpty() ? null : overruns.getLast();
+		}
+
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns a one line summary of p50, p99 and maximum for every phase.
+	 */
+	public String summary() {
+
+		StringBuilder builder = new StringBuilder();
+
+		for (Phase p : phases) {
+
+			Histogram h = histograms[p.ordinal()];
+
+			if (builder.length() > 0)
+				builder.append(", ");
+
+			builder.append(String.format("%s %.2f/%.2f/%.2f", p,
+					millis(h.getPercentile(50)), millis(h.getPercentile(99)),
+					millis(h.getMax())));
+
+		}
+
+		return builder.toString() + " ms (p50/p99/max)";
+
+	}
+
+	public void reset() {
+
+		for (Histogram h : histograms)
+			h.reset();
+
+	}
+
+	private static double millis(long nanos) {
+		return (double) nanos / 1000000;
+	}
+
+}
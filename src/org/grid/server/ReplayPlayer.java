@@ -0,0 +1,415 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+
+import org.grid.arena.ArenaView;
+import org.grid.arena.SwingView;
+import org.grid.arena.TerminalView;
+import org.grid.arena.TrackedArena;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Plays a recorded game without a server or agents. Every step of the replay
+ * is reported to the game listeners, just like the game reported it when it
+ * was recorded, and the views are updated with the field after the step. The
+ * replay runs at a multiple of the recorded game speed or as fast as the file
+ * can be read.
+ *
+ * Usage: java org.grid.server.ReplayPlayer [--speed N] [--unthrottled]
+ * [--swing | --terminal] replay_file ...
+ *
+ * Without a view the player only prints the statistics of every replay, so a
+ * whole archive of games can be checked in one run.
+ */
+public class ReplayPlayer implements TrackedArena, Runnable {
+
+	/**
+	 * Counts the events of a replay per team.
+	 */
+	public static class Statistics implements GameListener {
+
+		private Hashtable<Team, int[]> counts = new Hashtable<Team, int[]>();
+
+		private int steps = 0;
+
+		private int[] get(Team team) {
+
+			int[] c = counts.get(team);
+
+			if (c == null) {
+				c = new int[4];
+				counts.put(team, c);
+			}
+
+			return c;
+		}
+
+		@Override
+		public void message(Team team, int from, int to, int length) {
+			get(team)[3]++;
+		}
+
+		@Override
+		public void position(Team team, int id, BodyPosition p) {
+			get(team)[p == null ? 2 : 1]++;
+		}
+
+		@Override
+		public void step() {
+			steps++;
+		}
+
+		public String toString() {
+
+			StringBuilder builder = new StringBuilder();
+
+			builder.append(steps).append(" steps");
+
+			for (Team team : counts.keySet()) {
+
+				int[] c = counts.get(team);
+
+				builder.append(String.format(", %s: %d moves, %d removed, %d messages",
+						team.getName(), c[1], c[2], c[3]));
+
+			}
+
+			return builder.toString();
+		}
+
+	}
+
+	private ReplayReader reader;
+
+	private float multiple = 1;
+
+	private volatile boolean running = false;
+
+	private Vector<GameListener> listeners = new Vector<GameListener>();
+
+	private Vector<ArenaView> views = new Vector<ArenaView>();
+
+	private GameListener dispatcher = new GameListener() {
+
+		@Override
+		public void message(Team team, int from, int to, int length) {
+			synchronized (listeners) {
+				for (GameListener l : listeners) {
+					try {
+						l.message(team, from, to, length);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void position(Team team, int id, BodyPosition p) {
+			synchronized (listeners) {
+				for (GameListener l : listeners) {
+					try {
+						l.position(team, id, p);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void step() {
+			synchronized (listeners) {
+				for (GameListener l : listeners) {
+					try {
+						l.step();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+	};
+
+	public ReplayPlayer(ReplayReader reader) {
+		this.reader = reader;
+	}
+
+	public void addListener(GameListener listener) {
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+	}
+
+	public void removeListener(GameListener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	public void addView(ArenaView view) {
+		synchronized (views) {
+			views.add(view);
+		}
+	}
+
+	public void removeView(ArenaView view) {
+		synchronized (views) {
+			views.remove(view);
+		}
+	}
+
+	/**
+	 * Sets the speed of the replay relative to the recorded game speed.
+	 *
+	 * @param multiple
+	 *            the multiple of the recorded speed, zero or less plays the
+	 *            replay as fast as possible
+	 */
+	public void setSpeed(float multiple) {
+		this.multiple = multiple;
+	}
+
+	public float getSpeed() {
+		return multiple;
+	}
+
+	/**
+	 * Plays the next step of the replay.
+	 *
+	 * @return false if the replay is finished
+	 */
+	public boolean step() {
+
+		if (!reader.next(listeners.isEmpty() ? null : dispatcher))
+			return false;
+
+		synchronized (views) {
+			for (ArenaView v : views) {
+				try {
+					v.update(this);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Plays the replay from the current step until the end or until
+	 * {@link #stop()} is called.
+	 */
+	@Override
+	public void run() {
+
+		running = true;
+
+		long next = System.nanoTime();
+
+		while (running) {
+
+			if (!step())
+				break;
+
+			if (multiple <= 0)
+				continue;
+
+			next += (long) (1000000000L / (reader.getSpeed() * multiple));
+
+			long sleep = next - System.nanoTime();
+
+			if (sleep <= 0) {
+				// do not try to catch up after a pause
+				next = System.nanoTime();
+				continue;
+			}
+
+			try {
+				Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+			} catch (InterruptedException e) {
+				break;
+			}
+
+		}
+
+		running = false;
+
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public ReplayReader getReader() {
+		return reader;
+	}
+
+	@Override
+	public int[] takeChanges() {
+		return reader.takeChanges();
+	}
+
+	@Override
+	public int getWidth() {
+		return reader.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return reader.getHeight();
+	}
+
+	@Override
+	public int getBaseTile(int x, int y) {
+		return reader.getBaseTile(x, y);
+	}
+
+	@Override
+	public int getBodyTile(int x, int y) {
+		return reader.getBodyTile(x, y);
+	}
+
+	@Override
+	public float getBodyOffsetX(int x, int y) {
+		return reader.getBodyOffsetX(x, y);
+	}
+
+	@Override
+	public float getBodyOffsetY(int x, int y) {
+		return reader.getBodyOffsetY(x, y);
+	}
+
+	@Override
+	public Color getBodyColor(int x, int y) {
+		return reader.getBodyColor(x, y);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		float multiple = 1;
+
+		boolean swing = false, terminal = false;
+
+		Vector<String> files = new Vector<String>();
+
+		for (int i = 0; i < args.length; i++) {
+
+			if (args[i].equals("--unthrottled")) {
+				multiple = 0;
+				continue;
+			}
+
+			if (args[i].equals("--speed") && i + 1 < args.length) {
+				multiple = Float.parseFloat(args[++i]);
+				continue;
+			}
+
+			if (args[i].equals("--swing")) {
+				swing = true;
+				continue;
+			}
+
+			if (args[i].equals("--terminal")) {
+				terminal = true;
+				continue;
+			}
+
+			files.add(args[i]);
+		}
+
+		if (files.isEmpty()) {
+			Server.info("Please provide the replay file locations as arguments.");
+			System.exit(1);
+		}
+
+		SwingView view = null;
+
+		if (swing) {
+
+			view = new SwingView(12);
+
+			JFrame window = new JFrame("AgentField replay");
+
+			window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+			window.getContentPane().add(new JScrollPane(view));
+
+			window.setSize(800, 800);
+
+			window.setVisible(true);
+
+		}
+
+		for (String file : files) {
+
+			ReplayReader reader;
+
+			try {
+				reader = new ReplayReader(new File(file));
+			} catch (IOException e) {
+				Server.info("Unable to open replay %s: %s", file, e.getMessage());
+				continue;
+			}
+
+			ReplayPlayer player = new ReplayPlayer(reader);
+
+			Statistics statistics = new Statistics();
+
+			player.setSpeed(multiple);
+
+			player.addListener(statistics);
+
+			if (view != null)
+				player.addView(view);
+
+			if (terminal)
+				player.addView(new TerminalView());
+
+			long start = System.currentTimeMillis();
+
+			player.run();
+
+			Server.info("%s: %s (%d ms)", file, statistics,
+					System.currentTimeMillis() - start);
+
+			reader.close();
+
+		}
+
+		System.exit(0);
+
+	}
+
+}
@@ -0,0 +1,764 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+
+import org.grid.arena.CellChanges;
+import org.grid.arena.TrackedArena;
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Reads a replay file written by {@link ReplayRecorder}. The file is mapped
+ * into memory in segments of a gigabyte, so files of any size can be opened
+ * without reading them. The reader is an {@link Arena} that shows the field
+ * at the current step, {@link #seek(int)} moves to any step by loading the
+ * closest keyframe before it and applying the changes that follow.
+ *
+ * The reader is not thread-safe, the field must not be painted while the
+ * reader moves to another step.
+ */
+public class ReplayReader implements TrackedArena {
+
+	private static final int SEGMENT_BITS = 30;
+
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	private RandomAccessFile file;
+
+	private MappedByteBuffer[] segments;
+
+	private long length;
+
+	private int version;
+
+	private int speed = 10;
+
+	private int width, height;
+
+	private int[] baseTiles;
+
+	private long initialBodies, records;
+
+	private int initialCount;
+
+	private Team[] teams;
+
+	private Color[] teamColors;
+
+	private int[] staticTiles;
+
+	private Color[] staticColors;
+
+	private int[] tiles;
+
+	private Color[] colors;
+
+	private byte[] offsetsX, offsetsY;
+
+	private long[] owners;
+
+	private CellChanges changes;
+
+	private HashMap<Long, Integer> agents = new HashMap<Long, Integer>();
+
+	private Hashtable<Integer, Color> colorCache = new Hashtable<Integer, Color>();
+
+	private int[] keyframeSteps;
+
+	private long[] keyframeOffsets;
+
+	private int keyframeCount;
+
+	private int interval;
+
+	private int lastStep;
+
+	private int step;
+
+	private long position;
+
+	public ReplayReader(File f) throws IOException {
+
+		file = new RandomAccessFile(f, "r");
+
+		FileChannel channel = file.getChannel();
+
+		length = channel.size();
+
+		segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+
+		for (int i = 0; i < segments.length; i++) {
+
+			long start = (long) i << SEGMENT_BITS;
+
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+					Math.min(SEGMENT_MASK + 1, length - start));
+
+		}
+
+		if (length < 10 || getInt(0) != ReplayRecorder.MAGIC)
+			throw new IOException("Not a replay file");
+
+		version = getShort(4);
+
+		// version 1 has no keyframes, it is read from the start
+		if (version < 1 || version > ReplayRecorder.VERSION)
+			throw new IOException("Unsupported replay version " + version);
+
+		readHeader();
+
+		if (!readIndex())
+			scanIndex();
+
+		step = -1;
+
+		seek(0);
+
+	}
+
+	private void readHeader() {
+
+		long p = 6;
+
+		if (version >= 3) {
+			speed = getShort(p);
+			p += 2;
+		}
+
+		width = getShort(p);
+		height = getShort(p + 2);
+
+		p += 4;
+
+		baseTiles = new int[width * height];
+
+		for (int i = 0; i < baseTiles.length; i++, p += 2)
+			baseTiles[i] = getShort(p);
+
+		int count = get(p++) & 0xff;
+
+		teams = new Team[count];
+		teamColors = new Color[count];
+
+		for (int i = 0; i < count; i++) {
+
+			byte[] name = new byte[getShort(p)];
+
+			p += 2;
+
+			for (int j = 0; j < name.length; j++)
+				name[j] = get(p++);
+
+			teamColors[i] = new Color(getInt(p));
+
+			try {
+				teams[i] = new Team(new String(name, "UTF-8"), teamColors[i]);
+			} catch (IOException e) {
+				teams[i] = new Team("", teamColors[i]);
+			}
+
+			p += 4;
+
+		}
+
+		staticTiles = new int[width * height];
+		staticColors = new Color[width * height];
+
+		tiles = new int[width * height];
+		colors = new Color[width * height];
+		offsetsX = new byte[width * height];
+		offsetsY = new byte[width * height];
+		owners = new long[width * height];
+		changes = new CellChanges(width * height);
+
+		int bodies = getInt(p);
+
+		p += 4;
+
+		initialBodies = p;
+
+		for (int i = 0; i < bodies; i++, p += 10) {
+
+			int cell = getShort(p + 2) * width + getShort(p);
+
+			int tile = getShort(p + 4);
+
+			// walls never move, the other bodies are in the keyframes
+			if (tile >= TILE_WALL_0 && tile <= TILE_WALL_9) {
+				staticTiles[cell] = tile;
+				staticColors[cell] = getColor(getInt(p + 6));
+			}
+
+		}
+
+		initialCount = bodies;
+
+		records = p;
+
+	}
+
+	/**
+	 * Reads the index at the end of the file.
+	 *
+	 * @return false if the file has no index
+	 */
+	private boolean readIndex() {
+
+		if (length < records + 12 || getInt(length - 4) != ReplayRecorder.MAGIC)
+			return false;
+
+		long p = getLong(length - 12);
+
+		if (p < records || p >= length || get(p) != ReplayRecorder.INDEX)
+			return false;
+
+		lastStep = getInt(p + 1);
+		interval = getInt(p + 5);
+		keyframeCount = getInt(p + 9);
+
+		keyframeSteps = new int[keyframeCount];
+		keyframeOffsets = new long[keyframeCount];
+
+		p += 13;
+
+		for (int i = 0; i < keyframeCount; i++, p += 12) {
+			keyframeSteps[i] = getInt(p);
+			keyframeOffsets[i] = getLong(p + 4);
+		}
+
+		length = getLong(length - 12);
+
+		return true;
+
+	}
+
+	/**
+	 * Finds the keyframes by reading all records, used if the recording was
+	 * not closed properly.
+	 */
+	private void scanIndex() {
+
+		keyframeSteps = new int[64];
+		keyframeOffsets = new long[64];
+
+		keyframeSteps[0] = 0;
+		keyframeOffsets[0] = records;
+		keyframeCount = 1;
+
+		long p = records;
+
+		while (true) {
+
+			int size = recordSize(p);
+
+			if (size < 0)
+				break;
+
+			byte type = get(p);
+
+			if (type == ReplayRecorder.STEP)
+				lastStep = getInt(p + 1);
+
+			if (type == ReplayRecorder.KEYFRAME) {
+
+				if (keyframeCount == keyframeSteps.length) {
+					keyframeSteps = Arrays.copyOf(keyframeSteps, keyframeCount * 2);
+					keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframeCount * 2);
+				}
+
+				keyframeSteps[keyframeCount] = getInt(p + 1);
+				keyframeOffsets[keyframeCount] = p;
+				keyframeCount++;
+
+			}
+
+			p += size;
+
+		}
+
+		// a record that was cut off by a crash is ignored
+		length = p;
+
+		interval = keyframeCount > 1 ? keyframeSteps[1] : Math.max(1, lastStep);
+
+	}
+
+	/**
+	 * Returns the size of the record at the given position.
+	 *
+	 * @return the size or -1 if there is no complete record
+	 */
+	private int recordSize(long p) {
+
+		if (p >= length)
+			return -1;
+
+		int size;
+
+		switch (get(p)) {
+		case ReplayRecorder.STEP:
+			size = 5;
+			break;
+		case ReplayRecorder.SPAWN:
+		case ReplayRecorder.MOVE:
+			size = 12;
+			break;
+		case ReplayRecorder.REMOVE:
+			size = 6;
+			break;
+		case ReplayRecorder.MESSAGE:
+			size = 14;
+			break;
+		case ReplayRecorder.KEYFRAME: {
+
+			if (p + 9 > length)
+				return -1;
+
+			long bodies = p + 9 + getInt(p + 5) * 13L;
+
+			if (bodies + 4 > length)
+				return -1;
+
+			size = (int) (bodies + 4 + getInt(bodies) * 10L - p);
+			break;
+		}
+		default:
+			return -1;
+		}
+
+		return p + size <= length ? size : -1;
+
+	}
+
+	/**
+	 * Moves to the end of the given step, step 0 is the field before the
+	 * first step.
+	 */
+	public void seek(int target) {
+
+		target = Math.max(0, Math.min(lastStep, target));
+
+		int keyframe = findKeyframe(target);
+
+		// continue from the current position if that is closer
+		if (target < step || keyframeSteps[keyframe] > step)
+			load(keyframe);
+
+		advance(target, null);
+
+	}
+
+	/**
+	 * Moves to the end of the next step and reports the recorded events of
+	 * the step to a listener, like the game reported them when it was
+	 * recorded. The teams of the events are the ones returned by
+	 * {@link #getTeam(int)}.
+	 *
+	 * @param listener
+	 *            the listener or <tt>null</tt>
+	 * @return false if the last step was already reached
+	 */
+	public boolean next(GameListener listener) {
+
+		if (step >= lastStep)
+			return false;
+
+		advance(step + 1, listener);
+
+		return true;
+
+	}
+
+	private void advance(int target, GameListener listener) {
+
+		while (position < length) {
+
+			byte type = get(position);
+
+			if (type == ReplayRecorder.STEP && getInt(position + 1) > target)
+				break;
+
+			int size = apply(position, listener);
+
+			if (size < 0) {
+				position = length;
+				break;
+			}
+
+			position += size;
+
+		}
+
+		step = target;
+
+	}
+
+	/**
+	 * Returns the last keyframe at or before the given step.
+	 */
+	private int findKeyframe(int target) {
+
+		int guess = Math.min(keyframeCount - 1, target / Math.max(1, interval));
+
+		if (keyframeSteps[guess] <= target
+				&& (guess + 1 == keyframeCount || keyframeSteps[guess + 1] > target))
+			return guess;
+
+		int low = 0, high = keyframeCount - 1;
+
+		while (low < high) {
+
+			int middle = (low + high + 1) / 2;
+
+			if (keyframeSteps[middle] <= target)
+				low = middle;
+			else
+				high = middle - 1;
+
+		}
+
+		return low;
+
+	}
+
+	private void load(int keyframe) {
+
+		System.arraycopy(staticTiles, 0, tiles, 0, tiles.length);
+		System.arraycopy(staticColors, 0, colors, 0, colors.length);
+		Arrays.fill(offsetsX, (byte) 0);
+		Arrays.fill(offsetsY, (byte) 0);
+		Arrays.fill(owners, -1);
+
+		agents.clear();
+
+		changes.markAll();
+
+		step = keyframeSteps[keyframe];
+		position = keyframeOffsets[keyframe];
+
+		if (keyframe == 0) {
+
+			for (int i = 0; i < initialCount; i++) {
+
+				long p = initialBodies + i * 10;
+
+				int cell = getShort(p + 2) * width + getShort(p);
+
+				tiles[cell] = getShort(p + 4);
+				colors[cell] = getColor(getInt(p + 6));
+
+			}
+
+			return;
+
+		}
+
+		long p = position + 5;
+
+		int count = getInt(p);
+
+		p += 4;
+
+		for (int i = 0; i < count; i++, p += 13) {
+
+			int team = get(p) & 0xff;
+
+			long key = ((long) team << 32) | (getInt(p + 1) & 0xffffffffL);
+
+			int cell = getShort(p + 7) * width + getShort(p + 5);
+
+			tiles[cell] = getShort(p + 11);
+			colors[cell] = teamColors[team];
+			offsetsX[cell] = get(p + 9);
+			offsetsY[cell] = get(p + 10);
+			owners[cell] = key;
+
+			agents.put(key, cell);
+
+		}
+
+		count = getInt(p);
+
+		p += 4;
+
+		for (int i = 0; i < count; i++, p += 10) {
+
+			int cell = getShort(p + 2) * width + getShort(p);
+
+			tiles[cell] = getShort(p + 4);
+			colors[cell] = getColor(getInt(p + 6));
+
+		}
+
+		position = p;
+
+	}
+
+	/**
+	 * Applies the record at the given position to the field.
+	 *
+	 * @return the size of the record or -1 if there is no complete record
+	 */
+	private int apply(long p, GameListener listener) {
+
+		int size = recordSize(p);
+
+		if (size < 0)
+			return -1;
+
+		switch (get(p)) {
+		case ReplayRecorder.STEP: {
+
+			if (listener != null)
+				listener.step();
+
+			break;
+		}
+		case ReplayRecorder.MESSAGE: {
+
+			if (listener != null)
+				listener.message(teams[get(p + 1) & 0xff], getInt(p + 2),
+						getInt(p + 6), getInt(p + 10));
+
+			break;
+		}
+		case ReplayRecorder.SPAWN:
+		case ReplayRecorder.MOVE: {
+
+			int team = get(p + 1) & 0xff;
+
+			Long key = ((long) team << 32) | (getInt(p + 2) & 0xffffffffL);
+
+			int cell = getShort(p + 8) * width + getShort(p + 6);
+
+			int tile = TILE_AGENT;
+
+			Integer previous = agents.get(key);
+
+			if (previous != null && owners[previous] == key) {
+				tile = tiles[previous];
+				clear(previous);
+			}
+
+			tiles[cell] = tile;
+			colors[cell] = teamColors[team];
+			offsetsX[cell] = get(p + 10);
+			offsetsY[cell] = get(p + 11);
+			owners[cell] = key;
+
+			agents.put(key, cell);
+
+			changes.mark(cell);
+
+			if (listener != null)
+				listener.position(teams[team], getInt(p + 2), new BodyPosition(
+						getShort(p + 6), getShort(p + 8), offsetsX[cell]
+								/ ReplayRecorder.OFFSET_SCALE, offsetsY[cell]
+								/ ReplayRecorder.OFFSET_SCALE));
+
+			break;
+		}
+		case ReplayRecorder.REMOVE: {
+
+			int team = get(p + 1) & 0xff;
+
+			Long key = ((long) team << 32) | (getInt(p + 2) & 0xffffffffL);
+
+			Integer previous = agents.remove(key);
+
+			if (previous != null && owners[previous] == key)
+				clear(previous);
+
+			if (listener != null)
+				listener.position(teams[team], getInt(p + 2), null);
+
+			break;
+		}
+		case ReplayRecorder.KEYFRAME: {
+
+			// a keyframe is the complete field, starting from it is cheaper
+			// than checking it against the current field
+			int keyframe = findKeyframe(getInt(p + 1));
+
+			if (keyframeOffsets[keyframe] == p) {
+				load(keyframe);
+				position = p;
+			}
+
+			break;
+		}
+		}
+
+		return size;
+
+	}
+
+	private void clear(int cell) {
+
+		tiles[cell] = staticTiles[cell];
+		colors[cell] = staticColors[cell];
+		offsetsX[cell] = 0;
+		offsetsY[cell] = 0;
+		owners[cell] = -1;
+
+		changes.mark(cell);
+
+	}
+
+	private Color getColor(int rgb) {
+
+		if (rgb == 0)
+			return null;
+
+		Color color = colorCache.get(rgb);
+
+		if (color == null) {
+			color = new Color(rgb);
+			colorCache.put(rgb, color);
+		}
+
+		return color;
+
+	}
+
+	/**
+	 * Returns the current step.
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Returns the last recorded step.
+	 */
+	public int getLastStep() {
+		return lastStep;
+	}
+
+	public int getKeyframeInterval() {
+		return interval;
+	}
+
+	/**
+	 * Returns the recorded speed of the game in steps per second.
+	 */
+	public int getSpeed() {
+		return speed;
+	}
+
+	public int getTeamCount() {
+		return teams.length;
+	}
+
+	/**
+	 * Returns a team of the replay. The team only has the name and the color
+	 * of the recorded team.
+	 */
+	public Team getTeam(int team) {
+		return teams[team];
+	}
+
+	@Override
+	public int[] takeChanges() {
+		return changes.take();
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getBaseTile(int x, int y) {
+		return baseTiles[y * width + x];
+	}
+
+	@Override
+	public int getBodyTile(int x, int y) {
+		return tiles[y * width + x];
+	}
+
+	@Override
+	public float getBodyOffsetX(int x, int y) {
+		return offsetsX[y * width + x] / ReplayRecorder.OFFSET_SCALE;
+	}
+
+	@Override
+	public float getBodyOffsetY(int x, int y) {
+		return offsetsY[y * width + x] / ReplayRecorder.OFFSET_SCALE;
+	}
+
+	@Override
+	public Color getBodyColor(int x, int y) {
+		return colors[y * width + x];
+	}
+
+	public void close() {
+
+		try {
+			file.close();
+		} catch (IOException e) {
+		}
+
+	}
+
+	private byte get(long p) {
+		return segments[(int) (p >>> SEGMENT_BITS)].get((int) (p & SEGMENT_MASK));
+	}
+
+	private int getShort(long p) {
+
+		int offset = (int) (p & SEGMENT_MASK);
+
+		if (offset <= SEGMENT_MASK - 1)
+			return segments[(int) (p >>> SEGMENT_BITS)].getShort(offset);
+
+		return (short) (((get(p) & 0xff) << 8) | (get(p + 1) & 0xff));
+
+	}
+
+	private int getInt(long p) {
+
+		int offset = (int) (p & SEGMENT_MASK);
+
+		if (offset <= SEGMENT_MASK - 3)
+			return segments[(int) (p >>> SEGMENT_BITS)].getInt(offset);
+
+		return (getShort(p) << 16) | (getShort(p + 2) & 0xffff);
+
+	}
+
+	private long getLong(long p) {
+		return ((long) getInt(p) << 32) | (getInt(p + 4) & 0xffffffffL);
+	}
+
+}
@@ -0,0 +1,595 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+
+import org.grid.server.Field.Body;
+import org.grid.server.Field.BodyPosition;
+import org.grid.server.Field.Wall;
+
+/**
+ * Streams the events of a game to an append-only binary replay file while the
+ * game runs, so the replay does not grow in memory and survives a crash of
+ * the server. The records are collected in a buffer that is written to the
+ * file when it is full, and every {@link #getSyncPeriod()} steps the file is
+ * also forced to the disk.
+ *
+ * Every {@link #getKeyframeInterval()} steps the complete occupancy of the
+ * field is stored in a keyframe, the records between two keyframes are the
+ * changes. When the recorder is closed an index of the keyframes is appended,
+ * so {@link ReplayReader} can jump to any step by reading one keyframe and at
+ * most one interval of changes.
+ *
+ * The file starts with a header:
+ *
+ * <pre>
+ * int magic, short version, short speed (steps per second)
+ * short width, short height, short[width * height] base tiles
+ * byte teams, per team: short name length, name (UTF-8), int color
+ * int bodies, per body: short x, short y, short tile, int color
+ * </pre>
+ *
+ * The header is followed by the records, each starts with a type byte:
+ *
+ * <pre>
+ * STEP     int step
+ * SPAWN    byte team, int id, short x, short y, byte offset x, byte offset y
+ * MOVE     byte team, int id, short x, short y, byte offset x, byte offset y
+ * REMOVE   byte team, int id
+ * MESSAGE  byte team, int from, int to, int length
+ * KEYFRAME int step, int agents, per agent: byte team, int id, short x,
+ *          short y, byte offset x, byte offset y, short tile,
+ *          int bodies, per body: short x, short y, short tile, int color
+ * INDEX    int last step, int interval, int keyframes,
+ *          per keyframe: int step, long offset
+ * </pre>
+ *
+ * The index is followed by its offset (long) and the magic number (int). A
+ * keyframe describes the field at the end of its step and does not contain
+ * the walls, which are in the header. The index is missing if the server did
+ * not exit cleanly, the reader then finds the keyframes by reading the whole
+ * file once.
+ *
+ * Offsets are stored in 1/254 of a cell. An agent is spawned the first time
+ * it is seen and again after it was removed. The bodies in the header are the
+ * walls, flags and headquarters on the field when recording started, bodies
+ * without a team have the color 0.
+ */
+public class ReplayRecorder implements GameListener, StepListener {
+
+	public static final int MAGIC = 0x41465250;
+
+	public static final short VERSION = 3;
+
+	public static final byte STEP = 1;
+
+	public static final byte SPAWN = 2;
+
+	public static final byte MOVE = 3;
+
+	public static final byte REMOVE = 4;
+
+	public static final byte MESSAGE = 5;
+
+	public static final byte KEYFRAME = 6;
+
+	public static final byte INDEX = 7;
+
+	public static final float OFFSET_SCALE = 254f;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private FileChannel channel;
+
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private Hashtable<Team, Integer> teams = new Hashtable<Team, Integer>();
+
+	private HashSet<Long> alive = new HashSet<Long>();
+
+	private Field field;
+
+	private Vector<byte[]> keyframes = new Vector<byte[]>();
+
+	private int[] indexSteps = new int[64];
+
+	private long[] indexOffsets = new long[64];
+
+	private int indexSize = 0;
+
+	private long written = 0;
+
+	private File file;
+
+	private int syncPeriod;
+
+	private int keyframeInterval;
+
+	private int step = 0;
+
+	private boolean failed = false;
+
+	/**
+	 * Opens a replay recorder if the game enables it with the
+	 * <tt>server.replay</tt> option.
+	 *
+	 * @param name
+	 *            the name of the file without the extension
+	 * @return the recorder or <tt>null</tt> if the replay is not enabled or the
+	 *         file cannot be created
+	 */
+	public static ReplayRecorder open(Game game, String name) {
+
+		if (!game.getProperty("server.replay", false))
+			return null;
+
+		File file = new File(name + ".replay");
+
+		try {
+
+			ReplayRecorder recorder = new ReplayRecorder(file, game,
+					game.getProperty("server.replay.sync", 100),
+					game.getProperty("server.replay.keyframe", 100));
+
+			Server.log("Recording replay to %s", file.getPath());
+
+			return recorder;
+
+		} catch (IOException e) {
+			Server.log("Unable to record replay to %s: %s", file.getPath(),
+					e.getMessage());
+			return null;
+		}
+
+	}
+
+	/**
+	 * Creates the replay file and writes the header.
+	 *
+	 * @param syncPeriod
+	 *            the number of steps between forcing the file to the disk,
+	 *            zero or less leaves that to the operating system
+	 * @param keyframeInterval
+	 *            the number of steps between keyframes
+	 */
+	public ReplayRecorder(File file, Game game, int syncPeriod,
+			int keyframeInterval) throws IOException {
+
+		this.file = file;
+		this.syncPeriod = syncPeriod;
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		channel = raf.getChannel();
+
+		field = game.getField();
+
+		int width = field.getWidth(), height = field.getHeight();
+
+		List<Team> list = game.getTeams();
+
+		ensure(12);
+
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short) game.getSpeed());
+		buffer.putShort((short) width);
+		buffer.putShort((short) height);
+
+		for (int y = 0; y < height; y++) {
+
+			ensure(width * 2);
+
+			for (int x = 0; x < width; x++)
+				buffer.putShort((short) field.getBaseTile(x, y));
+
+		}
+
+		ensure(1);
+
+		buffer.put((byte) list.size());
+
+		for (int i = 0; i < list.size(); i++) {
+
+			Team team = list.get(i);
+
+			teams.put(team, i);
+
+			byte[] name = team.getName().getBytes(UTF8);
+
+			ensure(name.length + 6);
+
+			buffer.putShort((short) name.length);
+			buffer.put(name);
+			buffer.putInt(team.getColor().getRGB());
+
+		}
+
+		int bodies = 0;
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (field.getBody(x, y) != null)
+					bodies++;
+
+		ensure(4);
+
+		buffer.putInt(bodies);
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+
+				if (field.getBody(x, y) == null)
+					continue;
+
+				ensure(10);
+
+				buffer.putShort((short) x);
+				buffer.putShort((short) y);
+				Color color = field.getBodyColor(x, y);
+
+				buffer.putShort((short) field.getBodyTile(x, y));
+				buffer.putInt(color == null ? 0 : color.getRGB());
+
+			}
+
+		addIndex(0);
+
+	}
+
+	@Override
+	public synchronized void message(Team team, int from, int to, int length) {
+
+		Integer index = teams.get(team);
+
+		if (index == null || !ensure(14))
+			return;
+
+		buffer.put(MESSAGE);
+		buffer.put(index.byteValue());
+		buffer.putInt(from);
+		buffer.putInt(to);
+		buffer.putInt(length);
+
+	}
+
+	@Override
+	public synchronized void position(Team team, int id, BodyPosition p) {
+
+		Integer index = teams.get(team);
+
+		if (index == null || !ensure(16))
+			return;
+
+		Long key = ((long) index << 32) | (id & 0xffffffffL);
+
+		if (p == null) {
+
+			if (!alive.remove(key))
+				return;
+
+			buffer.put(REMOVE);
+			buffer.put(index.byteValue());
+			buffer.putInt(id);
+
+			return;
+
+		}
+
+		buffer.put(alive.add(key) ? SPAWN : MOVE);
+		buffer.put(index.byteValue());
+		buffer.putInt(id);
+		buffer.putShort((short) p.getX());
+		buffer.putShort((short) p.getY());
+		buffer.put((byte) Math.round(p.getOffsetX() * OFFSET_SCALE));
+		buffer.put((byte) Math.round(p.getOffsetY() * OFFSET_SCALE));
+
+	}
+
+	@Override
+	public synchronized void step() {
+
+		step++;
+
+		writeKeyframes(step);
+
+		if (!ensure(5))
+			return;
+
+		buffer.put(STEP);
+		buffer.putInt(step);
+
+		if (syncPeriod > 0 && step % syncPeriod == 0)
+			sync();
+
+	}
+
+	/**
+	 * Writes the buffered records and forces the file to the disk.
+	 */
+	public synchronized void sync() {
+
+		if (failed)
+			return;
+
+		try {
+			write();
+			channel.force(false);
+		} catch (IOException e) {
+			fail(e);
+		}
+
+	}
+
+	/**
+	 * Takes a keyframe at the end of every keyframe interval. It is called on
+	 * the game thread, while the other events may be delivered later by an
+	 * asynchronous listener, so the keyframe is only written before the next
+	 * step record.
+	 */
+	@Override
+	public void stepFinished(int step) {
+
+		if (step % keyframeInterval != 0)
+			return;
+
+		Vector<Agent> agents = new Vector<Agent>();
+		Vector<Integer> bodies = new Vector<Integer>();
+
+		int width = field.getWidth(), height = field.getHeight();
+
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+
+				Body body = field.getBody(x, y);
+
+				if (body == null || body instanceof Wall)
+					continue;
+
+				if (body instanceof Agent && teams.containsKey(((Agent) body).getTeam()))
+					agents.add((Agent) body);
+				else
+					bodies.add(y * width + x);
+
+			}
+
+		ByteBuffer keyframe = ByteBuffer.allocate(13 + agents.size() * 13
+				+ bodies.size() * 10);
+
+		keyframe.put(KEYFRAME);
+		keyframe.putInt(step);
+		keyframe.putInt(agents.size());
+
+		for (Agent a : agents) {
+
+			BodyPosition p = field.getPosition(a);
+
+			keyframe.put(teams.get(a.getTeam()).byteValue());
+			keyframe.putInt(a.getId());
+			keyframe.putShort((short) p.getX());
+			keyframe.putShort((short) p.getY());
+			keyframe.put((byte) Math.round(p.getOffsetX() * OFFSET_SCALE));
+			keyframe.put((byte) Math.round(p.getOffsetY() * OFFSET_SCALE));
+			keyframe.putShort((short) a.getTile());
+
+		}
+
+		keyframe.putInt(bodies.size());
+
+		for (int cell : bodies) {
+
+			int x = cell % width, y = cell / width;
+
+			Color color = field.getBodyColor(x, y);
+
+			keyframe.putShort((short) x);
+			keyframe.putShort((short) y);
+			keyframe.putShort((short) field.getBodyTile(x, y));
+			keyframe.putInt(color == null ? 0 : color.getRGB());
+
+		}
+
+		keyframes.add(keyframe.array());
+
+	}
+
+	/**
+	 * Writes the keyframes of the steps before the given step.
+	 */
+	private void writeKeyframes(int before) {
+
+		while (!keyframes.isEmpty()) {
+
+			byte[] keyframe = keyframes.firstElement();
+
+			int at = ByteBuffer.wrap(keyframe, 1, 4).getInt();
+
+			if (at >= before)
+				return;
+
+			keyframes.remove(0);
+
+			addIndex(at);
+
+			put(keyframe);
+
+		}
+
+	}
+
+	private void addIndex(int at) {
+
+		if (indexSize == indexSteps.length) {
+			indexSteps = Arrays.copyOf(indexSteps, indexSize * 2);
+			indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+		}
+
+		indexSteps[indexSize] = at;
+		indexOffsets[indexSize] = written + buffer.position();
+
+		indexSize++;
+
+	}
+
+	/**
+	 * Writes the remaining records and the index and closes the file.
+	 */
+	public synchronized void close() {
+
+		if (failed)
+			return;
+
+		writeKeyframes(Integer.MAX_VALUE);
+
+		long offset = written + buffer.position();
+
+		ByteBuffer index = ByteBuffer.allocate(13 + indexSize * 12 + 12);
+
+		index.put(INDEX);
+		index.putInt(step);
+		index.putInt(keyframeInterval);
+		index.putInt(indexSize);
+
+		for (int i = 0; i < indexSize; i++) {
+			index.putInt(indexSteps[i]);
+			index.putLong(indexOffsets[i]);
+		}
+
+		index.putLong(offset);
+		index.putInt(MAGIC);
+
+		put(index.array());
+
+		sync();
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+
+		failed = true;
+
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getSyncPeriod() {
+		return syncPeriod;
+	}
+
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/**
+	 * Makes sure that the buffer has space for a record.
+	 *
+	 * @return false if recording has stopped
+	 */
+	private boolean ensure(int length) {
+
+		if (failed)
+			return false;
+
+		if (buffer.remaining() >= length)
+			return true;
+
+		try {
+			write();
+			return true;
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+
+	}
+
+	/**
+	 * Writes a record that was prepared in an array.
+	 */
+	private void put(byte[] record) {
+
+		if (record.length <= buffer.capacity()) {
+			if (ensure(record.length))
+				buffer.put(record);
+			return;
+		}
+
+		if (!ensure(buffer.capacity()))
+			return;
+
+		try {
+
+			write();
+
+			ByteBuffer wrapped = ByteBuffer.wrap(record);
+
+			while (wrapped.hasRemaining())
+				written += channel.write(wrapped);
+
+		} catch (IOException e) {
+			fail(e);
+		}
+
+	}
+
+	private void write() throws IOException {
+
+		buffer.flip();
+
+		while (buffer.hasRemaining())
+			written += channel.write(buffer);
+
+		buffer.clear();
+
+	}
+
+	private void fail(IOException e) {
+
+		if (failed)
+			return;
+
+		failed = true;
+
+		Server.log("Replay recording stopped: %s", e.getMessage());
+
+		try {
+			channel.close();
+		} catch (IOException ex) {
+		}
+
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.grid.arena.SwingView;
+
+/**
+ * Shows a recorded game. The slider moves to any step of the replay, which
+ * takes at most one keyframe interval of changes, so even very long replays
+ * can be scrubbed smoothly.
+ *
+ * Usage: java org.grid.server.ReplayViewer replay_file
+ */
+public class ReplayViewer {
+
+	public static void main(final String[] args) throws IOException {
+
+		if (args.length < 1) {
+			Server.info("Please provide the replay file location as an argument.");
+			System.exit(1);
+		}
+
+		final ReplayReader reader = new ReplayReader(new File(args[0]));
+
+		Server.info("Opened replay with %d steps", reader.getLastStep());
+
+		SwingUtilities.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				show(reader, args[0]);
+			}
+
+		});
+
+	}
+
+	private static void show(final ReplayReader reader, String title) {
+
+		final SwingView view = new SwingView();
+
+		final JLabel stepDisplay = new JLabel();
+
+		stepDisplay.setHorizontalAlignment(JLabel.CENTER);
+
+		final JSlider slider = new JSlider(0, reader.getLastStep(), 0);
+
+		slider.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+
+				reader.seek(slider.getValue());
+
+				stepDisplay.setText(String.format("Step: %d / %d",
+						reader.getStep(), reader.getLastStep()));
+
+				view.update(reader);
+
+			}
+		});
+
+		JFrame window = new JFrame("AgentField replay - " + new File(title).getName());
+
+		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+		final JScrollPane pane = new JScrollPane(view);
+
+		final JComboBox<String> zoom = new JComboBox<String>(Main.ZOOM_LEVELS_TITLES);
+
+		zoom.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				int ind = zoom.getSelectedIndex();
+
+				if (ind > -1) {
+					view.setCellSize(Main.ZOOM_LEVELS[ind]);
+					pane.repaint();
+				}
+			}
+		});
+
+		zoom.setSelectedIndex(1);
+		zoom.setEditable(false);
+
+		JPanel status = new JPanel(new BorderLayout());
+
+		status.add(stepDisplay, BorderLayout.CENTER);
+		status.add(zoom, BorderLayout.EAST);
+
+		JPanel controls = new JPanel(new BorderLayout());
+
+		controls.add(status, BorderLayout.NORTH);
+		controls.add(slider, BorderLayout.CENTER);
+
+		window.getContentPane().add(pane, BorderLayout.CENTER);
+		window.getContentPane().add(controls, BorderLayout.SOUTH);
+
+		stepDisplay.setText(String.format("Step: %d / %d", reader.getStep(),
+				reader.getLastStep()));
+
+		view.update(reader);
+
+		window.pack();
+
+		window.setVisible(true);
+
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.grid.server.AsyncListener.Overflow;
+
+/**
+ * The parts of the server that every front end needs: the log, the replay
+ * file and the release information. Nothing in this class touches Swing, so
+ * the headless server and the tournament runner can use it without loading
+ * the user interface of {@link Main}.
+ */
+public final class Server {
+
+	static final int PORT = 5000;
+
+	static final String RELEASE = "0.9";
+
+	private static PrintWriter log;
+
+	private static DateFormat logDate = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss");
+
+	private static String logName = "game";
+
+	private static DateFormat date = new SimpleDateFormat("[hh:mm:ss] ");
+
+	private Server() {
+
+	}
+
+	/**
+	 * Opens the log file of the game, it is named after the current time and
+	 * the title of the game.
+	 */
+	static void openLog(Game game) {
+
+		logName = logDate.format(new Date()) + "_" + game.getTitle();
+
+		try {
+			log = new PrintWriter(new File(logName + ".log"));
+		} catch (Exception e) {}
+
+	}
+
+	/**
+	 * Opens the replay recorder of the game if it is enabled, the replay file
+	 * is named like the log file. The recorder is closed when the virtual
+	 * machine exits.
+	 */
+	static ReplayRecorder openReplay(final Game game) {
+
+		final ReplayRecorder recorder = ReplayRecorder.open(game, logName);
+
+		if (recorder == null)
+			return null;
+
+		game.addListener(recorder, Overflow.BLOCK);
+
+		game.addStepListener(recorder);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				game.removeStepListener(recorder);
+				game.removeListener(recorder);
+				recorder.close();
+			}
+		});
+
+		return recorder;
+
+	}
+
+	/**
+	 * Prints a message to the console and to the log file if it is open.
+	 */
+	public static void log(String format, Object ... objects) {
+
+		try {
+
+			String msg = String.format(format, objects);
+
+			System.out.println(date.format(new Date()) + msg);
+
+			if (log != null) {
+				log.println(date.format(new Date()) + msg);
+				log.flush();
+			}
+
+		} catch (Exception e) { e.printStackTrace(); }
+	}
+
+	/**
+	 * Prints a message to the console only.
+	 */
+	public static void info(String format, Object ... objects) {
+
+		System.out.println(date.format(new Date()) + String.format(format, objects));
+
+	}
+
+}
@@ -18,6 +18,9 @@
 package org.grid.server;
 
 import java.awt.Color;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -28,7 +31,6 @@ import org.grid.arena.Arena;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
-import org.grid.server.Game.MessageContainter;
 
 
 public class Team {
@@ -58,7 +60,96 @@ public class Team {
 		}
 	}
 	
+	/**
+	 * Immutable open addressing hash table that maps agent ids to clients. A
+	 * new table is built whenever the set of agents changes, so lookups can be
+	 * done without any locking.
+	 */
+	private static final class AgentIndex {
+
+		private int[] keys;
+
+		private Client[] values;
+
+		private int mask;
+
+		private Client[] members;
+
+		public AgentIndex(Collection<Client> clients) {
+
+			int capacity = 4;
+
+			while (capacity < clients.size() * 2)
+				capacity <<= 1;
+
+			keys = new int[capacity];
+			values = new Client[capacity];
+			mask = capacity - 1;
+
+			for (Client c : clients) {
+
+				Agent agent = c.getAgent();
+
+				if (agent == null)
+					continue;
+
+				int slot = hash(agent.getId()) & mask;
+
+				while (keys[slot] != 0)
+					slot = (slot + 1) & mask;
+
+				keys[slot] = agent.getId();
+				values[slot] = c;
+
+			}
+
+			Vector<Client> members = new Vector<Client>();
+
+			for (Client c : values) {
+				if (c != null)
+					members.add(c);
+			}
+
+			this.members = members.toArray(new Client[members.size()]);
+
+		}
+
+		public Client get(int id) {
+
+			if (id == 0)
+				return null;
+
+			int slot = hash(id) & mask;
+
+			while (true) {
+
+				int key = keys[slot];
+
+				if (key == id)
+					return values[slot];
+
+				if (key == 0)
+					return null;
+
+				slot = (slot + 1) & mask;
+
+			}
+
+		}
+
+		private static int hash(int id) {
+
+			int h = id * 0x9E3779B9;
+
+			return h ^ (h >>> 16);
+
+		}
+
+	}
+
 	private HashSet<Client> used = new HashSet<Client>();
+
+	private volatile AgentIndex index = new AgentIndex(new Vector<Client>());
 	
 	private ConcurrentLinkedQueue<Client> pool = new ConcurrentLinkedQueue<Client>();
 	
@@ -124,7 +215,9 @@ public class Team {
 			client.setAgent(agt);
 			used.add(client);
 			
-			Main.log("New agent spawned for team: " + name + " (id: " + agt.getId() + ")");
+			index = new AgentIndex(used);
+			
+			Server.log("New agent spawned for team: " + name + " (id: " + agt.getId() + ")");
 			
 			return agt;
 		}
@@ -148,7 +241,7 @@ public class Team {
 	
 	public void removeClient(Client client) {
 		
-		Main.log("Remove client: " + client);
+		Server.log("Remove client: " + client);
 		
 		if (client == null)
 			return;
@@ -162,7 +255,9 @@ public class Team {
 			
 			// just in case ... remove from everywhere :)
 			pool.remove(client);
-			used.remove(client);
+			
+			if (used.remove(client))
+				index = new AgentIndex(used);
 			
 		}
 
@@ -170,6 +265,22 @@ public class Team {
 		
 	}
 	
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * Returns the number of agents that were spawned for the team since the
+	 * start of the game.
+	 */
+	public int getSpawned() {
+
+		synchronized (pool) {
+			return allocatedIds.size();
+		}
+
+	}
+
 	public int size() {
 		
 		synchronized (pool) {
@@ -181,7 +292,13 @@ public class Team {
 		
 	}
 
-	public void cleanup(Field field) {
+	/**
+	 * Removes the dead agents from the field and returns their clients to
+	 * the pool.
+	 * 
+	 * @return the removed agents
+	 */
+	public Collection<Agent> cleanup(Field field) {
 		
 		synchronized (pool) {
 			Vector<Client> remove = new Vector<Client>();
@@ -203,19 +320,23 @@ public class Team {
 				
 			}
 			
-			used.removeAll(remove);
-			pool.addAll(remove);
+			if (!remove.isEmpty()) {
+				used.removeAll(remove);
+				pool.addAll(remove);
+				index = new AgentIndex(used);
+			}
 			
+			Vector<Agent> dead = new Vector<Agent>(removed);
+
 			for (Agent a : removed) {
 				
-				BodyPosition pos = field.getPosition(a);
-				
 				field.removeBody(a);
 
 			}
 
 			removed.clear();
 			
+			return dead;
 		}
 	}
 	
@@ -240,40 +361,39 @@ public class Team {
 		return moved;
 	}
 	
-	public void dispatch() {
-		
-		synchronized (pool) {
-
-			for (Client c : used) {
-			
-				if (c.getAgent() != null) {
-					MessageContainter msg = c.getAgent().pullMessage();
-					if (msg != null) {
-						
-						Client cltto = findById(msg.getTo());
-						
-						if (cltto != null)
-							cltto.send(c.getAgent().getId(), msg.getMessage());
-						
-					}
-				}
-			}
-		}
-	}
-	
+	/**
+	 * Finds the client that controls the agent with the given id. The lookup
+	 * does not lock the team, so it can be called often.
+	 * 
+	 * @param id
+	 *            the id of the agent
+	 * @return the client or <tt>null</tt> if no agent of the team has this id
+	 */
 	public Client findById(int id) {
 		
-		synchronized (pool) {
+		Client client = index.get(id);
 		
-			for (Client cl : used) {
-				
-				if (cl.getAgent() != null && cl.getAgent().getId() == id)
-					return cl;
-				
-			}
-			
+		if (client == null)
 			return null;
-		}
+		
+		// the index may be a moment behind the clients
+		Agent agent = client.getAgent();
+		
+		if (agent == null || agent.getId() != id)
+			return null;
+		
+		return client;
+		
+	}
+	
+	/**
+	 * Returns the clients that control the agents of the team. Like
+	 * {@link #findById(int)} the call does not lock the team, the agent of a
+	 * client may already be gone.
+	 */
+	public List<Client> getMembers() {
+		
+		return Collections.unmodifiableList(Arrays.asList(index.members));
 		
 	}
 	
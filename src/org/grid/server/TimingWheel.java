@@ -0,0 +1,208 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * Hierarchical timing wheel that schedules items for a game step. Each level
+ * has 64 slots, a slot of the first level covers a single step, a slot of
+ * every further level covers all slots of the previous one. Items that are
+ * due far in the future wait in a slot of a higher level and are moved to
+ * lower levels as the wheel turns, so scheduling and advancing the wheel take
+ * constant time per item regardless of the number of pending items.
+ *
+ * The wheel is not thread safe.
+ */
+public class TimingWheel<T> {
+
+	private static final int BITS = 6;
+
+	private static final int SLOTS = 1 << BITS;
+
+	private static final int MASK = SLOTS - 1;
+
+	private static final int LEVELS = 4;
+
+	private static class Entry<T> {
+
+		private int due;
+
+		private T item;
+
+		private Entry<T> next;
+
+		public Entry(int due, T item) {
+			this.due = due;
+			this.item = item;
+		}
+
+	}
+
+	private Object[][] heads = new Object[LEVELS][SLOTS];
+
+	private Object[][] tails = new Object[LEVELS][SLOTS];
+
+	private Vector<Entry<T>> overflow = new Vector<Entry<T>>();
+
+	private int current;
+
+	private int size = 0;
+
+	/**
+	 * @param step
+	 *            the current step, the first call to {@link #advance()}
+	 *            returns the items due in the next one
+	 */
+	public TimingWheel(int step) {
+		this.current = step;
+	}
+
+	/**
+	 * Schedules an item. Items that are due in the current step or earlier
+	 * are returned by the next call to {@link #advance()}.
+	 *
+	 * @param due
+	 *            the step in which the item is due
+	 * @param item
+	 *            the item
+	 */
+	public void schedule(int due, T item) {
+
+		insert(new Entry<T>(Math.max(current + 1, due), item));
+
+		size++;
+
+	}
+
+	/**
+	 * Advances the wheel by one step.
+	 *
+	 * @return the items that are due in the new step in the order they were
+	 *         scheduled
+	 */
+	public List<T> advance() {
+
+		current++;
+
+		// move entries from higher levels whose slot starts with this step
+		for (int level = LEVELS - 1; level > 0; level--) {
+
+			if ((current & ((1 << (BITS * level)) - 1)) != 0)
+				continue;
+
+			if (level == LEVELS - 1 && !overflow.isEmpty()) {
+
+				Vector<Entry<T>> pending = new Vector<Entry<T>>(overflow);
+
+				overflow.clear();
+
+				for (Entry<T> e : pending)
+					insert(e);
+
+			}
+
+			int slot = (current >> (BITS * level)) & MASK;
+
+			Entry<T> e = take(level, slot);
+
+			while (e != null) {
+				Entry<T> next = e.next;
+				e.next = null;
+				insert(e);
+				e = next;
+			}
+
+		}
+
+		Vector<T> due = new Vector<T>();
+
+		Entry<T> e = take(0, current & MASK);
+
+		while (e != null) {
+			due.add(e.item);
+			e = e.next;
+		}
+
+		size -= due.size();
+
+		return due;
+
+	}
+
+	/**
+	 * Returns the last step that the wheel was advanced to.
+	 */
+	public int getStep() {
+		return current;
+	}
+
+	/**
+	 * Returns the number of scheduled items.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void insert(Entry<T> entry) {
+
+		// the lowest level on which the due step and the current step share
+		// all higher bits
+		for (int level = 0; level < LEVELS; level++) {
+
+			int shift = BITS * (level + 1);
+
+			if ((entry.due >>> shift) == (current >>> shift)) {
+				append(level, (entry.due >>> (BITS * level)) & MASK, entry);
+				return;
+			}
+
+		}
+
+		overflow.add(entry);
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private void append(int level, int slot, Entry<T> entry) {
+
+		Entry<T> tail = (Entry<T>) tails[level][slot];
+
+		if (tail == null)
+			heads[level][slot] = entry;
+		else
+			tail.next = entry;
+
+		tails[level][slot] = entry;
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private Entry<T> take(int level, int slot) {
+
+		Entry<T> head = (Entry<T>) heads[level][slot];
+
+		heads[level][slot] = null;
+		tails[level][slot] = null;
+
+		return head;
+
+	}
+
+}
@@ -0,0 +1,504 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>. 
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.grid.agent.Agent.Launcher;
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Profiler.Phase;
+
+/**
+ * Plays a round-robin tournament in a single process. Every pair of teams
+ * plays a match on every map, the matches are played concurrently by a fixed
+ * number of worker threads. Each match has its own game and dispatcher, the
+ * agents connect to it directly within the process or over the loopback
+ * interface.
+ *
+ * Usage: java org.grid.server.Tournament tournament_file
+ *
+ * The tournament file is a properties file, see doc/tournament.md.
+ */
+public class Tournament {
+
+	/**
+	 * A single match between two teams and its results.
+	 */
+	public class Match implements Runnable {
+
+		private int number;
+
+		private File map;
+
+		private String[] teams;
+
+		private int[] score = new int[2], spawned = new int[2],
+				alive = new int[2];
+
+		private int steps = 0;
+
+		private long time = 0;
+
+		private long stepMedian = 0, stepPercentile = 0;
+
+		private int overruns = 0;
+
+		private String error = null;
+
+		public Match(int number, File map, String team1, String team2) {
+			this.number = number;
+			this.map = map;
+			this.teams = new String[] { team1, team2 };
+		}
+
+		@Override
+		public void run() {
+
+			Dispatcher dispatcher = null;
+
+			Game game = null;
+
+			Vector<Launcher> launchers = new Vector<Launcher>();
+
+			TeamListener registration = null;
+
+			Server.log("Match %d started: %s", number, this);
+
+			try {
+
+				Properties properties = new Properties();
+
+				properties.putAll(Tournament.this.properties);
+
+				properties.setProperty("title", String.format("Match %d",
+						number));
+				properties.setProperty("team1", teams[0]);
+				properties.setProperty("team2", teams[1]);
+				properties.setProperty("gameplay.field", map.getAbsolutePath());
+
+				game = Game.loadFromProperties(properties, source);
+
+				int agentCount = game.getProperty("gameplay.agents", 10);
+
+				// counts the agents that registered, the match starts when all
+				// of them are ready
+				final CountDownLatch registered = new CountDownLatch(
+						teams.length * agentCount);
+
+				registration = new TeamListener() {
+
+					@Override
+					public void scoreChange(Team team, int score) {
+
+					}
+
+					@Override
+					public void clientConnect(Team team, Client client) {
+						registered.countDown();
+					}
+
+					@Override
+					public void clientDisconnect(Team team, Client client) {
+
+					}
+				};
+
+				for (String team : teams)
+					game.getTeam(team).addListener(registration);
+
+				dispatcher = new Dispatcher(0, game);
+
+				Thread thread = new Thread(dispatcher);
+				thread.setName("Dispatcher " + number);
+				thread.setDaemon(true);
+				thread.start();
+
+				for (String team : teams) {
+
+					Launcher launcher = new Launcher(agents.get(team), team,
+							properties.getProperty("tournament.passphrase."
+									+ team, ""));
+
+					launcher.setBinaryFormat(true);
+					launcher.setDeltaStates(true);
+					launcher.setPrewarm(true);
+
+					launchers.add(launcher);
+
+					if (local)
+						launcher.connect(dispatcher, agentCount);
+					else
+						launcher.connect("localhost", dispatcher.getPort(),
+								agentCount);
+
+				}
+
+				if (!registered.await(registrationTimeout,
+						TimeUnit.MILLISECONDS))
+					Server.log("Match %d: only %d of %d agents registered, starting anyway",
+							number, teams.length * agentCount
+									- registered.getCount(), teams.length
+									* agentCount);
+
+				long start = System.currentTimeMillis();
+
+				Headless.run(game, length, unthrottled, false);
+
+				time = System.currentTimeMillis() - start;
+
+				steps = game.getStep();
+
+				for (int i = 0; i < teams.length; i++) {
+
+					Team team = game.getTeam(teams[i]);
+
+					score[i] = team.getScore();
+					spawned[i] = team.getSpawned();
+					alive[i] = team.size();
+
+				}
+
+				Histogram histogram = game.getProfiler().getHistogram(
+						Phase.STEP);
+
+				stepMedian = histogram.getPercentile(50);
+				stepPercentile = histogram.getPercentile(99);
+
+				overruns = game.getProfiler().getOverrunCount();
+
+				Server.log("Match %d finished: %s", number, this);
+
+			} catch (Exception e) {
+
+				error = e.toString();
+
+				Server.log("Match %d failed: %s", number, error);
+
+			} finally {
+
+				if (game != null && registration != null) {
+					for (String team : teams)
+						game.getTeam(team).removeListener(registration);
+				}
+
+				if (dispatcher != null)
+					dispatcher.close();
+
+				for (Launcher launcher : launchers)
+					launcher.close();
+
+			}
+
+		}
+
+		public String getTeam(int index) {
+			return teams[index];
+		}
+
+		public int getScore(int index) {
+			return score[index];
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public String toString() {
+			return String.format("%s vs %s on %s", teams[0], teams[1], map
+					.getName());
+		}
+
+	}
+
+	private Properties properties = new Properties();
+
+	private File source;
+
+	private Hashtable<String, Class<? extends org.grid.agent.Agent>> agents = new Hashtable<String, Class<? extends org.grid.agent.Agent>>();
+
+	private Vector<Match> matches = new Vector<Match>();
+
+	private int length;
+
+	private boolean unthrottled;
+
+	private boolean local;
+
+	private long registrationTimeout;
+
+	private int threads;
+
+	public Tournament(File source) throws IOException, ClassNotFoundException {
+
+		this.source = source;
+
+		FileReader reader = new FileReader(source);
+
+		try {
+			properties.load(reader);
+		} finally {
+			reader.close();
+		}
+
+		length = Integer.parseInt(properties.getProperty("tournament.steps",
+				"1000"));
+
+		unthrottled = Boolean.parseBoolean(properties.getProperty(
+				"tournament.unthrottled", "false"));
+
+		local = Boolean.parseBoolean(properties.getProperty(
+				"tournament.local", "true"));
+
+		registrationTimeout = Long.parseLong(properties.getProperty(
+				"tournament.registration", "10000"));
+
+		threads = Integer.parseInt(properties.getProperty(
+				"tournament.threads", String.valueOf(Runtime.getRuntime()
+						.availableProcessors())));
+
+		int rounds = Integer.parseInt(properties.getProperty(
+				"tournament.rounds", "1"));
+
+		Vector<String> teams = split(properties.getProperty(
+				"tournament.teams", ""));
+
+		if (teams.size() < 2)
+			throw new IOException("At least two teams are required");
+
+		for (String team : teams) {
+
+			String agent = properties.getProperty("tournament.agent." + team);
+
+			if (agent == null)
+				throw new IOException("No agent class for team " + team);
+
+			agents.put(team, Class.forName(agent).asSubclass(
+					org.grid.agent.Agent.class));
+
+		}
+
+		List<File> maps = listMaps();
+
+		if (maps.isEmpty())
+			throw new IOException("No maps found");
+
+		for (int r = 0; r < rounds; r++) {
+			for (File map : maps) {
+				for (int i = 0; i < teams.size(); i++) {
+					for (int j = i + 1; j < teams.size(); j++) {
+						matches.add(new Match(matches.size() + 1, map, teams
+								.get(i), teams.get(j)));
+					}
+				}
+			}
+		}
+
+	}
+
+	private List<File> listMaps() {
+
+		Vector<File> maps = new Vector<File>();
+
+		String list = properties.getProperty("tournament.maps");
+
+		if (list != null) {
+
+			for (String name : split(list))
+				maps.add(resolve(name));
+
+			return maps;
+
+		}
+
+		File[] files = resolve(
+				properties.getProperty("tournament.maps.directory", "maps"))
+				.listFiles(new FilenameFilter() {
+
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.endsWith(".png") || name.endsWith(".field");
+					}
+				});
+
+		if (files != null) {
+			Arrays.sort(files);
+			maps.addAll(Arrays.asList(files));
+		}
+
+		return maps;
+
+	}
+
+	private File resolve(String path) {
+
+		File file = new File(path);
+
+		if (!file.isAbsolute())
+			file = new File(source.getAbsoluteFile().getParentFile(), path);
+
+		return file;
+
+	}
+
+	private static Vector<String> split(String list) {
+
+		Vector<String> result = new Vector<String>();
+
+		for (String s : list.split(",")) {
+			if (s.trim().length() > 0)
+				result.add(s.trim());
+		}
+
+		return result;
+
+	}
+
+	public List<Match> getMatches() {
+		return matches;
+	}
+
+	/**
+	 * Plays all matches and waits until they are finished.
+	 */
+	public void play() throws InterruptedException {
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+
+		for (Match match : matches)
+			executor.execute(match);
+
+		executor.shutdown();
+
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Writes the results of all matches and the total score of every team.
+	 */
+	public void report(PrintWriter out) {
+
+		out.println(String.format("%-5s %-16s %-12s %-12s %9s %9s %9s %6s %8s %13s %8s %s",
+				"Match", "Map", "Team 1", "Team 2", "Score", "Alive",
+				"Spawned", "Steps", "Time [s]", "Step [ms]", "Overruns",
+				"Status"));
+
+		final Hashtable<String, Integer> totals = new Hashtable<String, Integer>();
+
+		for (String team : agents.keySet())
+			totals.put(team, 0);
+
+		for (Match m : matches) {
+
+			out.println(String.format(
+					"%-5d %-16s %-12s %-12s %4d:%-4d %4d:%-4d %4d:%-4d %6d %8.1f %6.2f/%-6.2f %8d %s",
+					m.number, m.map.getName(), m.teams[0], m.teams[1],
+					m.score[0], m.score[1], m.alive[0], m.alive[1],
+					m.spawned[0], m.spawned[1], m.steps,
+					(double) m.time / 1000, (double) m.stepMedian / 1000000,
+					(double) m.stepPercentile / 1000000, m.overruns,
+					m.error == null ? "ok" : m.error));
+
+			if (m.error != null)
+				continue;
+
+			for (int i = 0; i < m.teams.length; i++)
+				totals.put(m.teams[i], totals.get(m.teams[i]) + m.score[i]);
+
+		}
+
+		Vector<String> standings = new Vector<String>(totals.keySet());
+
+		Collections.sort(standings, new Comparator<String>() {
+
+			@Override
+			public int compare(String o1, String o2) {
+				int d = totals.get(o2) - totals.get(o1);
+				return d != 0 ? d : o1.compareTo(o2);
+			}
+		});
+
+		out.println();
+
+		out.println("Standings (total score):");
+
+		for (int i = 0; i < standings.size(); i++)
+			out.println(String.format("%3d. %-12s %6d", i + 1, standings
+					.get(i), totals.get(standings.get(i))));
+
+		out.flush();
+
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+
+		if (args.length < 1) {
+			System.out.println("Usage: java org.grid.server.Tournament tournament_file");
+			System.exit(1);
+		}
+
+		Tournament tournament = new Tournament(new File(args[0]));
+
+		Server.info("Playing %d matches with %d threads", tournament.matches
+				.size(), tournament.threads);
+
+		long start = System.currentTimeMillis();
+
+		tournament.play();
+
+		Server.info("Tournament finished in %d s", (System.currentTimeMillis() - start) / 1000);
+
+		tournament.report(new PrintWriter(System.out));
+
+		String report = tournament.properties.getProperty("tournament.report");
+
+		if (report != null) {
+
+			PrintWriter out = new PrintWriter(new FileWriter(tournament
+					.resolve(report)));
+
+			tournament.report(out);
+
+			out.close();
+
+		}
+
+		System.exit(0);
+
+	}
+
+}
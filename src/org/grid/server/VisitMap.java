@@ -6,7 +6,7 @@ import java.util.Arrays;
 import org.grid.arena.Arena;
 import org.grid.arena.SwingView.Palette;
 import org.grid.server.Field.BodyPosition;
-import org.grid.server.History.HistoryPosition;
+import org.grid.server.History.Track;
 
 
 public class VisitMap implements Arena, Palette, GameListener {
@@ -75,24 +75,33 @@ public class VisitMap implements Arena, Palette, GameListener {
 		
 		clear();
 		
-		Iterable<HistoryPosition> h = history.getAgentHistory(team, agent);
+		Track h = history.getAgentTrack(team, agent);
 		
 		if (h == null)
 			return;
 		
 		lastPosition = null;
 		
-		for (HistoryPosition p : h) {
-			if (lastPosition == null || !p.equals(lastPosition)) {
+		int lastX = -1, lastY = -1;
 
-				cells[p.getY() * width + p.getX()]++;
+		for (int i = 0; i < h.size(); i++) {
+
+			int x = h.getX(i), y = h.getY(i);
+
+			if (x != lastX || y != lastY) {
+
+				cells[y * width + x]++;
 				
-				markNeighborhood(p.getX(), p.getY());
+				markNeighborhood(x, y);
 			}
 			
-			lastPosition = p;
+			lastX = x;
+			lastY = y;
 		}
 		
+		if (h.size() > 0)
+			lastPosition = h.get(h.size() - 1);
+		
 		
 	}
 
@@ -139,7 +148,7 @@ public class VisitMap implements Arena, Palette, GameListener {
 	@Override
 	public void position(Team team, int id, BodyPosition p) {
 		
-		if (agent.getId() != id)
+		if (agent.getId() != id || p == null)
 			return;
 		
 		if (lastPosition == null || !p.equals(lastPosition)) {